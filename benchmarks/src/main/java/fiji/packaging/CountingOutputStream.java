@@ -0,0 +1,20 @@
+package fiji.packaging;
+
+import java.io.OutputStream;
+
+/**
+ * Discards everything written to it, but counts the bytes.
+ */
+class CountingOutputStream extends OutputStream {
+	long count;
+
+	@Override
+	public void write(final int b) {
+		count++;
+	}
+
+	@Override
+	public void write(final byte[] b, final int off, final int len) {
+		count += len;
+	}
+}
@@ -0,0 +1,82 @@
+package fiji.packaging;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates reproducible, moderately compressible file sets.
+ */
+class SyntheticFiles {
+	private final static String[] WORDS = {
+		"ImageJ", "Fiji", "plugin", "class", "import", "public", "static",
+		"void", "return", "final", "image", "stack", "pixel", "0x7f", "\n"
+	};
+
+	/**
+	 * Writes the file set to a new temporary directory.
+	 *
+	 * @param kind one of "small" (many small files), "huge" (few huge files) or "mixed"
+	 * @return the relative paths of the files
+	 */
+	static List<String> create(final File root, final String kind) throws IOException {
+		final Random random = new Random(17);
+		final List<String> result = new ArrayList<String>();
+		if (kind.equals("small"))
+			for (int i = 0; i < 5000; i++)
+				result.add(write(root, "plugins/small-" + i + ".txt", 512 + random.nextInt(4096), random));
+		else if (kind.equals("huge"))
+			for (int i = 0; i < 3; i++)
+				result.add(write(root, "java/lib/huge-" + i + ".bin", 64 << 20, random));
+		else if (kind.equals("mixed")) {
+			for (int i = 0; i < 1000; i++)
+				result.add(write(root, "jars/mixed-" + i + ".jar", 1024 + random.nextInt(256 << 10), random));
+			result.add(write(root, "java/lib/modules", 48 << 20, random));
+		}
+		else
+			throw new IllegalArgumentException("Unknown file set: " + kind);
+		return result;
+	}
+
+	private static String write(final File root, final String path, final int size, final Random random) throws IOException {
+		final File file = new File(root, path);
+		final File dir = file.getParentFile();
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Could not make " + dir);
+		final byte[] chunk = new byte[65536];
+		final OutputStream out = new FileOutputStream(file);
+		try {
+			for (int remaining = size; remaining > 0; ) {
+				int length = 0;
+				while (length < chunk.length) {
+					// mix text with random bytes
+					if (random.nextInt(4) == 0)
+						chunk[length++] = (byte) random.nextInt();
+					else {
+						final String word = WORDS[random.nextInt(WORDS.length)];
+						for (int i = 0; i < word.length() && length < chunk.length; i++)
+							chunk[length++] = (byte) word.charAt(i);
+					}
+				}
+				final int count = Math.min(remaining, chunk.length);
+				out.write(chunk, 0, count);
+				remaining -= count;
+			}
+		} finally {
+			out.close();
+		}
+		return path;
+	}
+
+	static void delete(final File file) {
+		final File[] list = file.listFiles();
+		if (list != null)
+			for (final File child : list)
+				delete(child);
+		file.delete();
+	}
+}
@@ -0,0 +1,52 @@
+package fiji.packaging;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link TarPackager#writeHeader}, with and without extended header.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TarHeaderBenchmark {
+	private final static String SHORT_NAME = "Fiji.app/jars/imagej-common-0.34.0.jar";
+	private final static String LONG_NAME = "Fiji.app/java/linux-amd64/zulu8.60.0.21-ca-fx-jdk8.0.322-linux_x64/jre/lib/amd64/server/libjvm.so";
+
+	private TarPackager packager;
+
+	@Setup
+	public void setup() throws IOException {
+		packager = new TarPackager();
+		packager.open(new CountingOutputStream());
+	}
+
+	@Benchmark
+	public void shortName() throws IOException {
+		packager.writeHeader(SHORT_NAME, 0644, 1234567, 0);
+	}
+
+	@Benchmark
+	public void longName() throws IOException {
+		packager.writeHeader(LONG_NAME, 0755, 1234567, 0);
+	}
+
+	@Benchmark
+	public void directory() throws IOException {
+		packager.writeHeader("Fiji.app/jars/bio-formats/", 0777, 0, 5);
+	}
+}
@@ -0,0 +1,70 @@
+package fiji.packaging;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures packaging a synthetic file set end to end, per format.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ThroughputBenchmark {
+	@Param({ "zip", "tar", "tar.gz", "tar.bz2" })
+	public String format;
+
+	@Param({ "small", "huge", "mixed" })
+	public String fileSet;
+
+	@Param({ "1", "4" })
+	public int threads;
+
+	private File root;
+	private List<PackageEntry> entries;
+
+	@Setup
+	public void setup() throws IOException {
+		root = Files.createTempDirectory("packager-benchmark").toFile();
+		entries = new ArrayList<PackageEntry>();
+		for (final String path : SyntheticFiles.create(root, fileSet))
+			entries.add(PackageEntry.stat(new File(root, path), path, null, 0));
+	}
+
+	@TearDown
+	public void tearDown() {
+		SyntheticFiles.delete(root);
+	}
+
+	@Benchmark
+	public long writeArchive() throws IOException {
+		final Packager packager = Packager.forFileName("benchmark." + format, threads);
+		packager.setThreads(threads);
+		packager.setRootDirectory(root);
+		final CountingOutputStream out = new CountingOutputStream();
+		packager.open(out);
+		for (final PackageEntry entry : entries)
+			packager.addFile(entry, false);
+		packager.close();
+		return out.count;
+	}
+}
@@ -0,0 +1,51 @@
+package fiji.packaging;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the {@link Packager#write(java.io.InputStream)} copy loop into an
+ * uncompressed tar.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class WriteLoopBenchmark {
+	@Param({ "4096", "1048576" })
+	public int size;
+
+	private byte[] data;
+	private TarPackager packager;
+
+	@Setup
+	public void setup() throws IOException {
+		data = new byte[size];
+		new Random(17).nextBytes(data);
+		packager = new TarPackager();
+		packager.open(new CountingOutputStream());
+	}
+
+	@Benchmark
+	public void copy() throws IOException {
+		packager.putNextEntry("Fiji.app/jars/entry.jar", false, size);
+		packager.write(new ByteArrayInputStream(data));
+		packager.closeEntry();
+	}
+}
@@ -0,0 +1,50 @@
+package fiji.packaging;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures writing the central directory of a ZIP with many (empty) entries,
+ * every tenth of which is marked executable, via {@link ZipWriter#finish()}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ZipTocBenchmark {
+	@Param({ "1000", "10000" })
+	public int entries;
+
+	private ZipWriter writer;
+
+	@Setup(Level.Invocation)
+	public void setup() throws IOException {
+		writer = new ZipWriter(new CountingOutputStream());
+		for (int i = 0; i < entries; i++) {
+			final ZipWriter.Entry entry = new ZipWriter.Entry("Fiji.app/plugins/entry-" + i + ".jar", i % 10 == 0, 0);
+			entry.method = ZipEntry.STORED;
+			writer.writeLocalHeader(entry);
+		}
+	}
+
+	@Benchmark
+	public void centralDirectory() throws IOException {
+		writer.finish();
+	}
+}
@@ -0,0 +1,215 @@
+package fiji.packaging;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Writes many archives in one run, e.g. all packages of a release.
+ * <p>
+ * Every line of a batch file holds the options and file names of one
+ * invocation of {@link Packager#main(String[])}, with the options of the
+ * command line as defaults. Empty lines and lines starting with {@code #}
+ * are ignored; file names must not contain spaces.
+ * </p>
+ * <p>
+ * The files are scanned and checksummed only once; every line picks the
+ * files for its platforms from that scan. Up to {@code --threads} lines are
+ * written at the same time, compressing on a single pool of as many workers
+ * and sharing the memory a single build would use. Without {@code --threads},
+ * all processors are used.
+ * </p>
+ */
+class Batch {
+	/**
+	 * The least memory a line may use to queue data for compression or read ahead.
+	 */
+	protected final static long MIN_MEMORY = 16l << 20;
+
+	protected final List<PackagerOptions> options = new ArrayList<PackagerOptions>();
+	protected final List<String[]> paths = new ArrayList<String[]>();
+	protected final List<Packager> packagers = new ArrayList<Packager>();
+	protected volatile boolean failed;
+
+	/**
+	 * Runs a batch file, reporting errors on {@link System#err}.
+	 *
+	 * @return whether all archives were written
+	 */
+	static boolean run(final File file, final PackagerOptions defaults) {
+		final Batch batch = new Batch();
+		final PackagerOptions lineDefaults = defaults.copy();
+		lineDefaults.batch = null;
+		// the report of the command line covers all lines
+		lineDefaults.report = null;
+		if (lineDefaults.threads <= 0)
+			lineDefaults.threads = Runtime.getRuntime().availableProcessors();
+		try {
+			if (!batch.read(file, lineDefaults))
+				return false;
+		} catch (IOException e) {
+			System.err.println("Could not read " + file + ": " + e.getMessage());
+			return false;
+		}
+		final boolean result = batch.run(lineDefaults.threads);
+		if (defaults.report != null) try {
+			batch.writeReport(new File(defaults.report));
+		} catch (IOException e) {
+			System.err.println("Could not write " + defaults.report + ": " + e.getMessage());
+			return false;
+		}
+		return result;
+	}
+
+	protected boolean read(final File file, final PackagerOptions defaults) throws IOException {
+		final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			int lineNumber = 0;
+			for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+				lineNumber++;
+				line = line.trim();
+				if (line.length() == 0 || line.startsWith("#"))
+					continue;
+				final String[] args = line.split("\\s+");
+				final PackagerOptions options = defaults.copy();
+				int i = 0;
+				while (i < args.length && args[i].startsWith("-")) {
+					try {
+						if (args[i].startsWith("--batch=") || !options.parse(args[i])) {
+							System.err.println(file + ":" + lineNumber + ": Unknown option: " + args[i]);
+							return false;
+						}
+					} catch (IllegalArgumentException e) {
+						System.err.println(file + ":" + lineNumber + ": " + e.getMessage());
+						return false;
+					}
+					i++;
+				}
+				if (i == args.length) {
+					System.err.println(file + ":" + lineNumber + ": No file names");
+					return false;
+				}
+				this.options.add(options);
+				paths.add(Arrays.copyOfRange(args, i, args.length));
+			}
+		} finally {
+			reader.close();
+		}
+		return true;
+	}
+
+	protected boolean run(final int threads) {
+		try {
+			for (int i = 0; i < options.size(); i++)
+				packagers.add(options.get(i).createPackager(paths.get(i)));
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			return false;
+		}
+		if (packagers.isEmpty())
+			return true;
+		// one line for the progress of all archives
+		final ProgressSink progress = ProgressSink.createDefault();
+		for (final Packager packager : packagers)
+			packager.setProgress(progress);
+
+		// scan all platforms once
+		final Map<String, PackageEntry> scanned;
+		try {
+			final Packager scanner = packagers.get(0);
+			scanner.initialize(false);
+			scanned = scanner.getFiles();
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.err.println("Could not scan the files");
+			return false;
+		}
+
+		final int concurrent = Math.min(threads, packagers.size());
+		for (final Packager packager : packagers)
+			shareMemory(packager, concurrent);
+		final AtomicInteger next = new AtomicInteger();
+		final ExecutorService executor = Executors.newFixedThreadPool(threads, new DaemonThreadFactory("batch-compress"));
+		// keep the progress going between the lines
+		progress.begin("Writing files", 0);
+		try {
+			final Thread[] writers = new Thread[concurrent];
+			for (int i = 0; i < writers.length; i++) {
+				writers[i] = new Thread("batch-" + i) {
+					@Override
+					public void run() {
+						for (int line = next.getAndIncrement(); line < packagers.size(); line = next.getAndIncrement()) {
+							final String[] paths = Batch.this.paths.get(line);
+							try {
+								options.get(line).write(packagers.get(line), paths, scanned, executor);
+							} catch (Exception e) {
+								synchronized (System.err) {
+									e.printStackTrace();
+									System.err.println("Error writing " + Arrays.toString(paths));
+								}
+								failed = true;
+							}
+						}
+					}
+				};
+				writers[i].start();
+			}
+			for (final Thread writer : writers) try {
+				writer.join();
+			} catch (InterruptedException e) {
+				System.err.println("Interrupted");
+				return false;
+			}
+		} finally {
+			progress.end();
+			executor.shutdownNow();
+		}
+		return !failed;
+	}
+
+	/**
+	 * Divides the memory a packager may hold among the lines written at the same time.
+	 */
+	protected static void shareMemory(final Packager packager, final int concurrent) {
+		if (packager.readAheadThreads > 0)
+			packager.setReadAhead(packager.readAheadThreads, Math.max(MIN_MEMORY, packager.readAheadMemory / concurrent));
+		if (packager instanceof ParallelZipPackager) {
+			final ParallelZipPackager zip = (ParallelZipPackager) packager;
+			zip.setMaxPendingBytes(Math.max(MIN_MEMORY, zip.maxPendingBytes / concurrent));
+		}
+		else if (packager instanceof FanOutPackager)
+			for (final Packager sink : ((FanOutPackager) packager).sinks)
+				shareMemory(sink, concurrent);
+	}
+
+	/**
+	 * Writes the statistics of all lines as a JSON array.
+	 */
+	protected void writeReport(final File file) throws IOException {
+		final Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+		try {
+			writer.write("[");
+			String separator = "\n";
+			for (final Packager packager : packagers) {
+				writer.write(separator);
+				writer.write(packager.getStatistics().toJSON().trim());
+				separator = ",\n";
+			}
+			writer.write("\n]\n");
+		} finally {
+			writer.close();
+		}
+	}
+}
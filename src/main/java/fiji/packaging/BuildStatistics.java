@@ -0,0 +1,360 @@
+package fiji.packaging;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counters and timers of a package build.
+ * <p>
+ * The {@link Packager} records the time spent in each phase (checksumming,
+ * walking the JREs, writing the entries, closing the archives), the time
+ * spent reading files, the number of entries and bytes, and the slowest
+ * entries. Compression on worker threads is timed separately from the
+ * thread writing the entries, as it overlaps with the other work. The
+ * numbers can be watched via JMX while the build runs, and are
+ * written as a JSON report at the end.
+ * </p>
+ */
+public class BuildStatistics implements BuildStatisticsMBean {
+	public final static String CHECKSUM = "checksum", JRE = "jre", WRITE = "write", CLOSE = "close";
+
+	protected final static int SLOWEST_COUNT = 10;
+
+	protected final AtomicLong entries = new AtomicLong(), bytesIn = new AtomicLong();
+	protected final AtomicLong readNanos = new AtomicLong(), compressNanos = new AtomicLong(), poolCompressNanos = new AtomicLong(), outputNanos = new AtomicLong();
+	protected final Map<String, Long> phaseNanos = new LinkedHashMap<String, Long>();
+	protected final Map<String, Object> phaseEvents = new LinkedHashMap<String, Object>();
+	protected final Map<File, FileChannel> outputs = new LinkedHashMap<File, FileChannel>();
+	protected final PriorityQueue<EntryTime> slowest = new PriorityQueue<EntryTime>();
+	protected final BuildStatistics parent;
+	protected volatile String currentPhase = "";
+	protected String build;
+	protected ObjectName name;
+
+	public BuildStatistics() {
+		this(null);
+	}
+
+	/**
+	 * @param parent the statistics to add all times to, too, e.g. those of a {@link FanOutPackager}, or null
+	 */
+	public BuildStatistics(final BuildStatistics parent) {
+		this.parent = parent;
+	}
+
+	/**
+	 * The time it took to add one entry.
+	 */
+	protected static class EntryTime implements Comparable<EntryTime> {
+		protected final String path;
+		protected final long size, nanos;
+
+		protected EntryTime(final String path, final long size, final long nanos) {
+			this.path = path;
+			this.size = size;
+			this.nanos = nanos;
+		}
+
+		@Override
+		public int compareTo(final EntryTime other) {
+			return nanos < other.nanos ? -1 : nanos > other.nanos ? 1 : 0;
+		}
+	}
+
+	/**
+	 * Starts a phase.
+	 *
+	 * @return the start time, to be passed to {@link #endPhase(String, long)}
+	 */
+	public long startPhase(final String phase) {
+		currentPhase = phase;
+		final Object event = PackagerEvents.beginPhase();
+		if (event != null) synchronized (this) {
+			phaseEvents.put(phase, event);
+		}
+		return System.nanoTime();
+	}
+
+	public synchronized void endPhase(final String phase, final long start) {
+		final Long previous = phaseNanos.get(phase);
+		phaseNanos.put(phase, (previous == null ? 0 : previous) + System.nanoTime() - start);
+		currentPhase = "";
+		PackagerEvents.commitPhase(phaseEvents.remove(phase), phase, build);
+	}
+
+	public void addReadTime(final long nanos) {
+		readNanos.addAndGet(nanos);
+		if (parent != null)
+			parent.addReadTime(nanos);
+	}
+
+	/**
+	 * Records time spent compressing on the thread writing the entries.
+	 */
+	public void addCompressTime(final long nanos) {
+		compressNanos.addAndGet(nanos);
+		if (parent != null)
+			parent.addCompressTime(nanos);
+	}
+
+	/**
+	 * Records time spent compressing on a worker thread of a pool.
+	 */
+	public void addPoolCompressTime(final long nanos) {
+		poolCompressNanos.addAndGet(nanos);
+		if (parent != null)
+			parent.addPoolCompressTime(nanos);
+	}
+
+	/**
+	 * Records time spent writing to the archive.
+	 */
+	public void addOutputTime(final long nanos) {
+		outputNanos.addAndGet(nanos);
+		if (parent != null)
+			parent.addOutputTime(nanos);
+	}
+
+	long getReadNanos() {
+		return readNanos.get();
+	}
+
+	long getCompressNanos() {
+		return compressNanos.get();
+	}
+
+	long getPoolCompressNanos() {
+		return poolCompressNanos.get();
+	}
+
+	long getOutputNanos() {
+		return outputNanos.get();
+	}
+
+	public void entryDone(final String path, final long size, final long nanos) {
+		entries.incrementAndGet();
+		bytesIn.addAndGet(size);
+		synchronized (slowest) {
+			if (slowest.size() < SLOWEST_COUNT)
+				slowest.add(new EntryTime(path, size, nanos));
+			else if (slowest.peek().nanos < nanos) {
+				slowest.poll();
+				slowest.add(new EntryTime(path, size, nanos));
+			}
+		}
+	}
+
+	/**
+	 * Records an archive being written, so that its size can be watched.
+	 */
+	public synchronized void addOutput(final File file, final FileOutputStream out) {
+		outputs.put(file, out.getChannel());
+	}
+
+	@Override
+	public String getCurrentPhase() {
+		return currentPhase;
+	}
+
+	@Override
+	public long getEntries() {
+		return entries.get();
+	}
+
+	@Override
+	public long getBytesIn() {
+		return bytesIn.get();
+	}
+
+	@Override
+	public synchronized long getBytesOut() {
+		long result = 0;
+		for (final Map.Entry<File, FileChannel> entry : outputs.entrySet()) {
+			final FileChannel channel = entry.getValue();
+			try {
+				result += channel.isOpen() ? channel.position() : entry.getKey().length();
+			} catch (IOException e) {
+				// closed in the meantime
+				result += entry.getKey().length();
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public long getReadMillis() {
+		return readNanos.get() / 1000000;
+	}
+
+	@Override
+	public long getCompressMillis() {
+		return compressNanos.get() / 1000000;
+	}
+
+	@Override
+	public long getPoolCompressMillis() {
+		return poolCompressNanos.get() / 1000000;
+	}
+
+	@Override
+	public long getOutputMillis() {
+		return outputNanos.get() / 1000000;
+	}
+
+	@Override
+	public long getChecksumMillis() {
+		return getPhaseMillis(CHECKSUM);
+	}
+
+	@Override
+	public long getJREMillis() {
+		return getPhaseMillis(JRE);
+	}
+
+	@Override
+	public long getWriteMillis() {
+		return getPhaseMillis(WRITE);
+	}
+
+	@Override
+	public long getCloseMillis() {
+		return getPhaseMillis(CLOSE);
+	}
+
+	public synchronized long getPhaseMillis(final String phase) {
+		final Long nanos = phaseNanos.get(phase);
+		return nanos == null ? 0 : nanos / 1000000;
+	}
+
+	@Override
+	public String[] getSlowestEntries() {
+		final List<EntryTime> list = getSlowest();
+		final String[] result = new String[list.size()];
+		for (int i = 0; i < result.length; i++)
+			result[i] = list.get(i).path + " (" + list.get(i).size + " bytes, " + list.get(i).nanos / 1000000 + " ms)";
+		return result;
+	}
+
+	protected List<EntryTime> getSlowest() {
+		final List<EntryTime> result;
+		synchronized (slowest) {
+			result = new ArrayList<EntryTime>(slowest);
+		}
+		Collections.sort(result, Collections.reverseOrder());
+		return result;
+	}
+
+	/**
+	 * Makes the statistics visible via JMX.
+	 *
+	 * @param build a name for the build, e.g. the first archive's file name
+	 */
+	public void register(final String build) {
+		this.build = build;
+		try {
+			name = new ObjectName("fiji.packaging:type=BuildStatistics,name=" + ObjectName.quote(build));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+		} catch (JMException e) {
+			System.err.println("Warning: could not register build statistics: " + e.getMessage());
+			name = null;
+		}
+	}
+
+	public void unregister() {
+		if (name == null)
+			return;
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+		} catch (JMException e) {
+			// already gone
+		}
+		name = null;
+	}
+
+	public String toJSON() {
+		final StringBuilder json = new StringBuilder();
+		json.append("{\n  \"outputs\": [");
+		String separator = "";
+		synchronized (this) {
+			for (final File file : outputs.keySet()) {
+				json.append(separator);
+				appendString(json, file.getPath());
+				separator = ", ";
+			}
+		}
+		json.append("],\n");
+		json.append("  \"entries\": ").append(getEntries()).append(",\n");
+		json.append("  \"bytesIn\": ").append(getBytesIn()).append(",\n");
+		json.append("  \"bytesOut\": ").append(getBytesOut()).append(",\n");
+		json.append("  \"readMillis\": ").append(getReadMillis()).append(",\n");
+		json.append("  \"compressMillis\": ").append(getCompressMillis()).append(",\n");
+		json.append("  \"poolCompressMillis\": ").append(getPoolCompressMillis()).append(",\n");
+		json.append("  \"outputMillis\": ").append(getOutputMillis()).append(",\n");
+		json.append("  \"phaseMillis\": {");
+		separator = "";
+		long totalNanos = 0;
+		synchronized (this) {
+			for (final Map.Entry<String, Long> entry : phaseNanos.entrySet()) {
+				json.append(separator);
+				appendString(json, entry.getKey());
+				json.append(": ").append(entry.getValue() / 1000000);
+				separator = ", ";
+				totalNanos += entry.getValue();
+			}
+		}
+		json.append("},\n");
+		final long writeNanos = 1000000 * (getWriteMillis() + getCloseMillis());
+		json.append("  \"totalMillis\": ").append(totalNanos / 1000000).append(",\n");
+		json.append("  \"megabytesPerSecond\": ").append(writeNanos == 0 ? 0 : Math.round(getBytesIn() * 1000.0 / writeNanos * 100) / 100.0).append(",\n");
+		json.append("  \"slowestEntries\": [");
+		separator = "\n";
+		for (final EntryTime entry : getSlowest()) {
+			json.append(separator).append("    {\"path\": ");
+			appendString(json, entry.path);
+			json.append(", \"size\": ").append(entry.size);
+			json.append(", \"millis\": ").append(entry.nanos / 1000000).append("}");
+			separator = ",\n";
+		}
+		json.append(separator.equals("\n") ? "]\n" : "\n  ]\n");
+		json.append("}\n");
+		return json.toString();
+	}
+
+	public void writeJSON(final File file) throws IOException {
+		final Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+		try {
+			writer.write(toJSON());
+		} finally {
+			writer.close();
+		}
+	}
+
+	protected static void appendString(final StringBuilder json, final String string) {
+		json.append('"');
+		for (int i = 0; i < string.length(); i++) {
+			final char c = string.charAt(i);
+			if (c == '"' || c == '\\')
+				json.append('\\').append(c);
+			else if (c < 0x20)
+				json.append(String.format("\\u%04x", (int) c));
+			else
+				json.append(c);
+		}
+		json.append('"');
+	}
+}
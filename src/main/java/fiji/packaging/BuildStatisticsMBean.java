@@ -0,0 +1,20 @@
+package fiji.packaging;
+
+/**
+ * The management interface of {@link BuildStatistics}, to watch a running build via JMX.
+ */
+public interface BuildStatisticsMBean {
+	String getCurrentPhase();
+	long getEntries();
+	long getBytesIn();
+	long getBytesOut();
+	long getReadMillis();
+	long getCompressMillis();
+	long getPoolCompressMillis();
+	long getOutputMillis();
+	long getChecksumMillis();
+	long getJREMillis();
+	long getWriteMillis();
+	long getCloseMillis();
+	String[] getSlowestEntries();
+}
@@ -0,0 +1,276 @@
+package fiji.packaging;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A persistent index of updater checksums, keyed by the files' stat data.
+ * <p>
+ * Every file is recorded with its size, modification time, mode and file key
+ * (the inode on Unix), so that only files whose stat data changed need to be
+ * checksummed again. The modification times of all directories are recorded,
+ * too, including those without any files so far: if any of them changed,
+ * files might have been added or removed, and the caller needs to do a full
+ * scan. The entries are kept
+ * sorted by path, so that the order does not depend on which files had to be
+ * checksummed again.
+ * </p>
+ */
+class ChecksumCache {
+	private final static String HEADER = "# Fiji Package Maker checksums v2";
+	private final static Charset UTF8 = Charset.forName("UTF-8");
+
+	private final File ijDir, file;
+	private final Map<String, Entry> entries = new TreeMap<String, Entry>();
+	private final Map<String, Long> directories = new TreeMap<String, Long>();
+
+	/**
+	 * A single file's stat data, updater checksum and platforms.
+	 */
+	static class Entry {
+		final String path, checksum, fileKey;
+		final long size, mtime;
+		final int mode;
+		final String[] platforms;
+
+		Entry(final String path, final long size, final long mtime, final int mode, final String fileKey, final String checksum, final String[] platforms) {
+			this.path = path;
+			this.size = size;
+			this.mtime = mtime;
+			this.mode = mode;
+			this.fileKey = fileKey;
+			this.checksum = checksum;
+			this.platforms = platforms;
+		}
+
+		PackageEntry toPackageEntry() {
+			return new PackageEntry(path, size, mtime, mode, checksum, PackageEntry.getPlatformMask(Arrays.asList(platforms)));
+		}
+	}
+
+	ChecksumCache(final File ijDir) {
+		this(ijDir, getDefaultLocation(ijDir));
+	}
+
+	ChecksumCache(final File ijDir, final File file) {
+		this.ijDir = ijDir;
+		this.file = file;
+	}
+
+	/**
+	 * Returns the cache file location, outside of the ImageJ directory so that
+	 * writing it does not change the directory's modification time.
+	 */
+	static File getDefaultLocation(final File ijDir) {
+		final String override = System.getProperty("fiji.packager.checksums");
+		if (override != null)
+			return new File(override);
+		String path = ijDir.getAbsolutePath();
+		try {
+			path = ijDir.getCanonicalPath();
+		} catch (IOException e) {
+			// fall back to the absolute path
+		}
+		final File cacheDir = new File(System.getProperty("user.home"), ".cache/fiji-packager");
+		return new File(cacheDir, "checksums-" + Integer.toHexString(path.hashCode()));
+	}
+
+	Collection<Entry> entries() {
+		return entries.values();
+	}
+
+	Entry get(final String path) {
+		return entries.get(path);
+	}
+
+	void clear() {
+		entries.clear();
+		directories.clear();
+	}
+
+	/**
+	 * Reads the cache, if there is one for this ImageJ directory.
+	 *
+	 * @return whether a valid cache was read
+	 */
+	boolean read() {
+		clear();
+		if (!file.exists())
+			return false;
+		try {
+			final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8));
+			try {
+				if (!HEADER.equals(reader.readLine()) || !ijDir.getAbsolutePath().equals(reader.readLine()))
+					return false;
+				for (;;) {
+					final String line = reader.readLine();
+					if (line == null)
+						return true;
+					final String[] fields = line.split("\t", -1);
+					if (fields[0].equals("D") && fields.length == 3)
+						directories.put(fields[2], Long.parseLong(fields[1]));
+					else if (fields[0].equals("F") && fields.length == 8) {
+						final String[] platforms = fields[6].length() == 0 ? new String[0] : fields[6].split(",");
+						entries.put(fields[7], new Entry(fields[7], Long.parseLong(fields[1]), Long.parseLong(fields[2]),
+							Integer.parseInt(fields[3], 8), fields[4], fields[5], platforms));
+					}
+					else {
+						clear();
+						return false;
+					}
+				}
+			} finally {
+				reader.close();
+			}
+		} catch (IOException e) {
+			clear();
+			return false;
+		} catch (NumberFormatException e) {
+			clear();
+			return false;
+		}
+	}
+
+	/**
+	 * Writes the cache atomically.
+	 */
+	void write() throws IOException {
+		final File dir = file.getAbsoluteFile().getParentFile();
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Could not make directory " + dir);
+		final File tmp = File.createTempFile(file.getName(), ".tmp", dir);
+		final PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(tmp), UTF8));
+		try {
+			writer.println(HEADER);
+			writer.println(ijDir.getAbsolutePath());
+			for (final Map.Entry<String, Long> directory : directories.entrySet())
+				writer.println("D\t" + directory.getValue() + "\t" + directory.getKey());
+			for (final Entry entry : entries.values()) {
+				final StringBuilder platforms = new StringBuilder();
+				for (final String platform : entry.platforms)
+					platforms.append(platforms.length() == 0 ? "" : ",").append(platform);
+				writer.println("F\t" + entry.size + "\t" + entry.mtime + "\t" + Integer.toOctalString(entry.mode) + "\t" + entry.fileKey + "\t"
+					+ entry.checksum + "\t" + platforms + "\t" + entry.path);
+			}
+		} finally {
+			writer.close();
+		}
+		if (writer.checkError())
+			throw new IOException("Could not write " + tmp);
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Tests whether files might have been added or removed since the last scan.
+	 */
+	boolean directoriesUnchanged() {
+		if (directories.isEmpty())
+			return false;
+		for (final Map.Entry<String, Long> directory : directories.entrySet()) {
+			final File dir = directory.getKey().length() == 0 ? ijDir : new File(ijDir, directory.getKey());
+			if (dir.lastModified() != directory.getValue().longValue())
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Removes all entries whose stat data changed.
+	 *
+	 * @return the paths of the removed entries that still exist
+	 */
+	List<String> removeChanged() {
+		final List<String> result = new ArrayList<String>();
+		for (final Iterator<Entry> iter = entries.values().iterator(); iter.hasNext(); ) {
+			final Entry entry = iter.next();
+			final BasicFileAttributes attributes = stat(entry.path);
+			if (attributes != null && attributes.size() == entry.size
+					&& attributes.lastModifiedTime().toMillis() == entry.mtime
+					&& getMode(entry.path, attributes) == entry.mode
+					&& String.valueOf(attributes.fileKey()).equals(entry.fileKey))
+				continue;
+			iter.remove();
+			if (attributes != null)
+				result.add(entry.path);
+		}
+		return result;
+	}
+
+	/**
+	 * Records the modification times of all directories, so that
+	 * {@link #directoriesUnchanged()} notices files added anywhere; call this
+	 * before a full scan, so that files added meanwhile are noticed, too.
+	 */
+	void recordDirectories() {
+		directories.clear();
+		recordDirectories(ijDir, "");
+	}
+
+	private void recordDirectories(final File dir, final String path) {
+		directories.put(path, dir.lastModified());
+		final File[] list = dir.listFiles();
+		if (list == null)
+			return;
+		for (final File child : list) {
+			if (!child.isDirectory())
+				continue;
+			final String childPath = path.length() == 0 ? child.getName() : path + "/" + child.getName();
+			// do not follow links into loops
+			if (Files.isSymbolicLink(child.toPath()))
+				directories.put(childPath, child.lastModified());
+			else
+				recordDirectories(child, childPath);
+		}
+	}
+
+	/**
+	 * Records a freshly checksummed file.
+	 */
+	void put(final String path, final String checksum, final Iterable<String> platforms) {
+		final BasicFileAttributes attributes = stat(path);
+		if (attributes == null)
+			return;
+		final List<String> list = new ArrayList<String>();
+		for (final String platform : platforms)
+			list.add(platform);
+		entries.put(path, new Entry(path, attributes.size(), attributes.lastModifiedTime().toMillis(), getMode(path, attributes),
+			String.valueOf(attributes.fileKey()), checksum, list.toArray(new String[list.size()])));
+	}
+
+	private BasicFileAttributes stat(final String path) {
+		try {
+			final BasicFileAttributes attributes = PackageEntry.readAttributes(getFile(path).toPath());
+			return attributes.isRegularFile() ? attributes : null;
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	private int getMode(final String path, final BasicFileAttributes attributes) {
+		if (attributes instanceof PosixFileAttributes)
+			return PackageEntry.getMode(((PosixFileAttributes) attributes).permissions());
+		return getFile(path).canExecute() ? 0755 : 0644;
+	}
+
+	private File getFile(final String path) {
+		return new File(ijDir, Packager.toLocalPath(path));
+	}
+}
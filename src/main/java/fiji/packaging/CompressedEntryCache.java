@@ -0,0 +1,314 @@
+package fiji.packaging;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Keeps compressed entries across builds, so that unchanged files need not be
+ * compressed again.
+ * <p>
+ * The entries are addressed by the updater's checksum of the file contents,
+ * the codec and the compression level. Every entry is a file holding the
+ * compressed bytes followed by a trailer with the CRC-32 and the sizes; it is
+ * written to a temporary file first and renamed into place, so that several
+ * builds can share the directory and readers never see partial entries.
+ * </p>
+ * <p>
+ * Using an entry marks it as recently used; {@link #trim()} evicts the least
+ * recently used entries when the cache grows beyond its size. All errors are
+ * treated as cache misses: the cache never fails a build.
+ * </p>
+ */
+public class CompressedEntryCache {
+	public final static String DEFLATE = "deflate";
+
+	/**
+	 * Files smaller than this are compressed faster than they are looked up.
+	 */
+	public final static long MIN_SIZE = 16 * 1024;
+
+	protected final static int MAGIC = 0x46504d43; // FPMC
+	protected final static int TRAILER_SIZE = 4 + 8 + 8 + 8;
+
+	/**
+	 * Temporary files older than this were left behind by an aborted build.
+	 */
+	protected final static long STALE_MILLIS = 24l * 60 * 60 * 1000;
+
+	protected final File directory;
+	protected final long maxBytes;
+
+	/**
+	 * @param maxBytes the size {@link #trim()} reduces the cache to
+	 */
+	public CompressedEntryCache(final File directory, final long maxBytes) {
+		this.directory = directory;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Returns whether a file can be cached: its contents need an updater checksum.
+	 */
+	public boolean accepts(final PackageEntry entry) {
+		return entry.checksum != null && entry.size >= MIN_SIZE;
+	}
+
+	/**
+	 * A cached entry, open for reading; it stays readable even when it is evicted meanwhile.
+	 */
+	public static class Entry implements Closeable {
+		public final long crc, size, compressedSize;
+		protected final FileInputStream in;
+
+		protected Entry(final FileInputStream in, final long crc, final long size, final long compressedSize) {
+			this.in = in;
+			this.crc = crc;
+			this.size = size;
+			this.compressedSize = compressedSize;
+		}
+
+		/**
+		 * Returns the channel to read the compressed bytes from, starting at position 0.
+		 */
+		public FileChannel getChannel() {
+			return in.getChannel();
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+
+	/**
+	 * Looks up an entry.
+	 *
+	 * @param size the uncompressed size the entry must have
+	 * @return the entry, or null if it is not cached
+	 */
+	public Entry get(final String checksum, final String codec, final int level, final long size) {
+		final File file = getFile(checksum, codec, level);
+		final FileInputStream in;
+		try {
+			in = new FileInputStream(file);
+		} catch (IOException e) {
+			return null;
+		}
+		try {
+			final FileChannel channel = in.getChannel();
+			final long length = channel.size();
+			if (length < TRAILER_SIZE)
+				return close(in);
+			final ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+			while (trailer.hasRemaining())
+				if (channel.read(trailer, length - TRAILER_SIZE + trailer.position()) < 0)
+					return close(in);
+			trailer.flip();
+			if (trailer.getInt() != MAGIC)
+				return close(in);
+			final long crc = trailer.getLong();
+			final long cachedSize = trailer.getLong();
+			final long compressedSize = trailer.getLong();
+			if (cachedSize != size || compressedSize != length - TRAILER_SIZE)
+				return close(in);
+			// least recently used is least recently modified
+			file.setLastModified(System.currentTimeMillis());
+			return new Entry(in, crc, size, compressedSize);
+		} catch (IOException e) {
+			return close(in);
+		}
+	}
+
+	private static Entry close(final FileInputStream in) {
+		try {
+			in.close();
+		} catch (IOException e) {
+			// ignore
+		}
+		return null;
+	}
+
+	/**
+	 * Starts writing an entry.
+	 *
+	 * @return the writer, or null if the entry cannot be written
+	 */
+	public Writer create(final String checksum, final String codec, final int level) {
+		final File file = getFile(checksum, codec, level);
+		try {
+			final File parent = file.getParentFile();
+			if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory())
+				return null;
+			return new Writer(file);
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Writes a complete entry.
+	 */
+	public void put(final String checksum, final String codec, final int level, final long crc, final long size, final ByteBuffer compressed) {
+		final Writer writer = create(checksum, codec, level);
+		if (writer != null) {
+			writer.write(compressed.duplicate());
+			writer.commit(crc, size);
+		}
+	}
+
+	/**
+	 * Writes one entry into a temporary file, to be renamed into place by {@link #commit(long, long)}.
+	 */
+	public class Writer {
+		protected final File file, temporary;
+		protected FileChannel channel;
+		protected long compressedSize;
+
+		protected Writer(final File file) throws IOException {
+			this.file = file;
+			temporary = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+			channel = new FileOutputStream(temporary).getChannel();
+		}
+
+		public void write(final byte[] b, final int off, final int len) {
+			write(ByteBuffer.wrap(b, off, len));
+		}
+
+		public void write(final ByteBuffer buffer) {
+			if (channel == null)
+				return;
+			try {
+				compressedSize += buffer.remaining();
+				while (buffer.hasRemaining())
+					channel.write(buffer);
+			} catch (IOException e) {
+				abort();
+			}
+		}
+
+		/**
+		 * Finishes the entry.
+		 *
+		 * @param crc the CRC-32 of the uncompressed data
+		 * @param size the uncompressed size
+		 */
+		public void commit(final long crc, final long size) {
+			if (channel == null)
+				return;
+			try {
+				final ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+				trailer.putInt(MAGIC).putLong(crc).putLong(size).putLong(compressedSize).flip();
+				while (trailer.hasRemaining())
+					channel.write(trailer);
+				channel.close();
+				channel = null;
+				try {
+					Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+				} catch (AtomicMoveNotSupportedException e) {
+					Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				}
+			} catch (IOException e) {
+				abort();
+			}
+		}
+
+		/**
+		 * Drops the entry, e.g. when the packager decided to store the file after all.
+		 */
+		public void abort() {
+			if (channel != null) try {
+				channel.close();
+			} catch (IOException e) {
+				// ignore
+			}
+			channel = null;
+			temporary.delete();
+		}
+	}
+
+	/**
+	 * Evicts the least recently used entries until the cache fits its size,
+	 * and removes temporary files left behind by aborted builds.
+	 */
+	public void trim() {
+		final File[] subdirectories = directory.listFiles();
+		if (subdirectories == null)
+			return;
+		final List<File> files = new ArrayList<File>();
+		final List<Long> times = new ArrayList<Long>();
+		long total = 0;
+		final long now = System.currentTimeMillis();
+		for (final File subdirectory : subdirectories) {
+			final File[] list = subdirectory.listFiles();
+			if (list == null)
+				continue;
+			for (final File file : list) {
+				final long time = file.lastModified();
+				if (file.getName().endsWith(".tmp")) {
+					if (now - time > STALE_MILLIS)
+						file.delete();
+					continue;
+				}
+				files.add(file);
+				times.add(time);
+				total += file.length();
+			}
+		}
+		if (total <= maxBytes)
+			return;
+		final Integer[] order = new Integer[files.size()];
+		for (int i = 0; i < order.length; i++)
+			order[i] = i;
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(final Integer a, final Integer b) {
+				return times.get(a).compareTo(times.get(b));
+			}
+		});
+		for (int i = 0; i < order.length && total > maxBytes; i++) {
+			final File file = files.get(order[i]);
+			final long length = file.length();
+			if (file.delete())
+				total -= length;
+		}
+	}
+
+	/**
+	 * Maps a key to its file, spreading the entries over 256 subdirectories.
+	 */
+	protected File getFile(final String checksum, final String codec, final int level) {
+		final String hash = sha1(checksum + "\0" + codec + "\0" + level);
+		return new File(new File(directory, hash.substring(0, 2)), hash.substring(2));
+	}
+
+	protected static String sha1(final String key) {
+		final MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+		final StringBuilder result = new StringBuilder();
+		try {
+			for (final byte b : digest.digest(key.getBytes("UTF-8")))
+				result.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return result.toString();
+	}
+}
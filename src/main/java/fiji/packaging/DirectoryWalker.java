@@ -0,0 +1,146 @@
+package fiji.packaging;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Lists the files in directory trees, walking subtrees in parallel.
+ * <p>
+ * Every subdirectory is walked by its own fork/join task, and the file
+ * attributes are read in the same pass. The results are concatenated in the
+ * order the directories were listed, i.e. in the same depth-first order a
+ * recursive walk produces. Hidden files and directories are skipped.
+ * </p>
+ */
+@SuppressWarnings("serial") // the tasks are never serialized
+class DirectoryWalker extends RecursiveTask<List<PackageEntry>> {
+	private final Path dir;
+	private final String path;
+
+	DirectoryWalker(final Path dir, final String path) {
+		this.dir = dir;
+		this.path = path;
+	}
+
+	/**
+	 * Walks several directories relative to a root.
+	 *
+	 * @param parallelism the number of threads to use
+	 * @return the entries in all directories, in order
+	 */
+	static List<PackageEntry> walk(final File root, final List<String> directories, final int parallelism) {
+		final ForkJoinPool pool = new ForkJoinPool(Math.max(1, parallelism));
+		try {
+			return pool.invoke(new RecursiveTask<List<PackageEntry>>() {
+				@Override
+				protected List<PackageEntry> compute() {
+					final List<DirectoryWalker> walkers = new ArrayList<DirectoryWalker>();
+					for (final String directory : directories) {
+						final DirectoryWalker walker = new DirectoryWalker(new File(root, directory).toPath(), directory);
+						walker.fork();
+						walkers.add(walker);
+					}
+					final List<PackageEntry> result = new ArrayList<PackageEntry>();
+					for (final DirectoryWalker walker : walkers)
+						result.addAll(walker.join());
+					return result;
+				}
+			});
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Finds the subdirectory containing the most recently modified {@code jre/}.
+	 *
+	 * @return the path of the {@code jre/} directory relative to the root, or null
+	 */
+	static String getNewestJRE(final File root, final String dirName) {
+		final DirectoryStream<Path> stream;
+		try {
+			stream = Files.newDirectoryStream(new File(root, dirName).toPath());
+		} catch (IOException e) {
+			return null;
+		}
+		String result = null;
+		long newest = Long.MIN_VALUE;
+		try {
+			for (final Path candidate : stream) {
+				final BasicFileAttributes attributes;
+				try {
+					attributes = Files.readAttributes(candidate.resolve("jre"), BasicFileAttributes.class);
+				} catch (IOException e) {
+					continue;
+				}
+				if (!attributes.isDirectory())
+					continue;
+				final long mtime = attributes.lastModifiedTime().toMillis();
+				if (result == null || newest < mtime) {
+					result = dirName + "/" + candidate.getFileName() + "/jre";
+					newest = mtime;
+				}
+			}
+		} finally {
+			try {
+				stream.close();
+			} catch (IOException e) {
+				// ignore
+			}
+		}
+		return result;
+	}
+
+	@Override
+	protected List<PackageEntry> compute() {
+		// entries and subdirectory tasks, in listing order
+		final List<Object> children = new ArrayList<Object>();
+		try {
+			final DirectoryStream<Path> stream = Files.newDirectoryStream(dir);
+			try {
+				for (final Path child : stream) {
+					final String name = child.getFileName().toString();
+					if (name.startsWith("."))
+						continue;
+					final BasicFileAttributes attributes;
+					try {
+						attributes = PackageEntry.readAttributes(child);
+					} catch (IOException e) {
+						continue;
+					}
+					if (attributes.isDirectory()) {
+						final DirectoryWalker walker = new DirectoryWalker(child, path + "/" + name);
+						walker.fork();
+						children.add(walker);
+					}
+					else if (attributes.isRegularFile())
+						children.add(PackageEntry.create(child, path + "/" + name, attributes, null, 0));
+				}
+			} finally {
+				stream.close();
+			}
+		} catch (IOException e) {
+			// like File#listFiles(), treat unreadable directories as empty
+		} catch (DirectoryIteratorException e) {
+			// keep what was listed so far
+		}
+
+		final List<PackageEntry> result = new ArrayList<PackageEntry>();
+		for (final Object child : children) {
+			if (child instanceof DirectoryWalker)
+				result.addAll(((DirectoryWalker) child).join());
+			else
+				result.add((PackageEntry) child);
+		}
+		return result;
+	}
+}
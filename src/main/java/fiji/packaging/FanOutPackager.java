@@ -0,0 +1,307 @@
+package fiji.packaging;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes several archives from a single scan and a single read of each file.
+ * <p>
+ * Every sink is driven by its own thread through a bounded queue, so that the
+ * slowest format determines the overall time rather than the sum of all
+ * formats. The bytes read from a file are shared by all sinks.
+ * </p>
+ */
+public class FanOutPackager extends Packager {
+	protected final static int QUEUE_SIZE = 64;
+
+	protected final Packager[] sinks;
+	protected Sink[] workers;
+	/** Whether the entry being added goes to the sinks that copy entries by themselves. */
+	protected boolean addingFile;
+	protected boolean closed;
+
+	public FanOutPackager(final Packager... sinks) {
+		if (sinks.length == 0)
+			throw new IllegalArgumentException("Need at least one sink");
+		this.sinks = sinks;
+		// the sinks compress and write on behalf of this packager, but record their entries' events by themselves
+		for (final Packager sink : sinks)
+			sink.statistics = new BuildStatistics(statistics);
+	}
+
+	@Override
+	public String getExtension() {
+		return sinks[0].getExtension();
+	}
+
+	@Override
+	public void setReproducible(final long timestamp) {
+		super.setReproducible(timestamp);
+		for (final Packager sink : sinks)
+			sink.setReproducible(timestamp);
+	}
+
+	@Override
+	public void setExecutor(final ExecutorService executor) {
+		super.setExecutor(executor);
+		for (final Packager sink : sinks)
+			sink.setExecutor(executor);
+	}
+
+	@Override
+	public void open(final OutputStream out) throws IOException {
+		if (sinks.length != 1)
+			throw new IllegalArgumentException("Need " + sinks.length + " output streams, got 1");
+		open(new OutputStream[] { out });
+	}
+
+	public void open(final OutputStream... outs) throws IOException {
+		if (outs.length != sinks.length)
+			throw new IllegalArgumentException("Need " + sinks.length + " output streams, got " + outs.length);
+		workers = new Sink[sinks.length];
+		for (int i = 0; i < sinks.length; i++) {
+			sinks[i].open(outs[i]);
+			workers[i] = new Sink(sinks[i]);
+			workers[i].start();
+		}
+	}
+
+	@Override
+	protected boolean copiesEntries() {
+		for (final Packager sink : sinks)
+			if (sink.copiesEntries())
+				return true;
+		return false;
+	}
+
+	/**
+	 * Lets the sinks that can copy entries, e.g. from a previous archive,
+	 * add the file by themselves; the others get the contents read once.
+	 */
+	@Override
+	protected void addEntry(final String name, final PackageEntry entry, final File file) throws IOException {
+		if (!copiesEntries()) {
+			super.addEntry(name, entry, file);
+			return;
+		}
+		enqueue(new Command() {
+			@Override
+			public void run(final Packager sink) throws IOException {
+				if (sink.copiesEntries())
+					sink.addEntry(name, entry, file);
+			}
+		});
+		for (final Packager sink : sinks)
+			if (!sink.copiesEntries()) {
+				addingFile = true;
+				try {
+					super.addEntry(name, entry, file);
+				} finally {
+					addingFile = false;
+				}
+				return;
+			}
+	}
+
+	/**
+	 * Lets every sink record an event for the entry, with its own compressed size and times.
+	 */
+	@Override
+	protected void beginEntryEvent() throws IOException {
+		super.beginEntryEvent();
+		if (entryEvent == null)
+			return;
+		enqueue(new Command() {
+			@Override
+			public void run(final Packager sink) throws IOException {
+				sink.beginEntryEvent();
+			}
+		});
+	}
+
+	/**
+	 * Passes the time spent reading the file once for all sinks on to the sinks' events.
+	 */
+	@Override
+	protected void commitEntryEvent(final String path, final long size, final long readNanos) throws IOException {
+		if (entryEvent == null)
+			return;
+		final long read = statistics.getReadNanos() - eventReadNanos + readNanos;
+		entryEvent = null;
+		enqueue(new Command() {
+			@Override
+			public void run(final Packager sink) throws IOException {
+				sink.commitEntryEvent(path, size, read);
+			}
+		});
+	}
+
+	@Override
+	public void putNextEntry(final String name, final PackageEntry entry) throws IOException {
+		final boolean addingFile = this.addingFile;
+		enqueue(new Command() {
+			@Override
+			public void run(final Packager sink) throws IOException {
+				if (!addingFile || !sink.copiesEntries())
+					sink.putNextEntry(name, entry);
+			}
+		});
+	}
+
+	@Override
+	public void write(final byte[] b, final int off, final int len) throws IOException {
+		final byte[] copy = new byte[len];
+		System.arraycopy(b, off, copy, 0, len);
+		final boolean addingFile = this.addingFile;
+		enqueue(new Command() {
+			@Override
+			public void run(final Packager sink) throws IOException {
+				if (!addingFile || !sink.copiesEntries())
+					sink.write(copy, 0, len);
+			}
+		});
+	}
+
+	@Override
+	public void write(final ByteBuffer buffer) throws IOException {
+		if (!buffer.isDirect()) {
+			super.write(buffer);
+			return;
+		}
+		// share mapped files instead of copying them
+		final ByteBuffer shared = buffer.slice();
+		buffer.position(buffer.limit());
+		final boolean addingFile = this.addingFile;
+		enqueue(new Command() {
+			@Override
+			public void run(final Packager sink) throws IOException {
+				if (!addingFile || !sink.copiesEntries())
+					sink.write(shared.duplicate());
+			}
+		});
+	}
+
+	@Override
+	public void closeEntry() throws IOException {
+		final boolean addingFile = this.addingFile;
+		enqueue(new Command() {
+			@Override
+			public void run(final Packager sink) throws IOException {
+				if (!addingFile || !sink.copiesEntries())
+					sink.closeEntry();
+			}
+		});
+	}
+
+	/**
+	 * Closes all sinks, even if some of them failed, and throws the first failure.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed)
+			return;
+		closed = true;
+		if (workers == null)
+			return;
+		for (final Sink worker : workers)
+			worker.put(CLOSE);
+		IOException failure = null;
+		for (final Sink worker : workers) {
+			try {
+				worker.join();
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted while closing " + worker.getName());
+			}
+			if (failure == null)
+				failure = worker.failure;
+		}
+		if (failure != null)
+			throw failure;
+	}
+
+	protected void enqueue(final Command command) throws IOException {
+		if (closed)
+			throw new IOException("Packager closed");
+		if (workers == null)
+			throw new IOException("Packager not opened");
+		for (final Sink worker : workers) {
+			final IOException failure = worker.failure;
+			if (failure != null) {
+				// let the other sinks finish their outputs before giving up
+				close();
+				throw failure;
+			}
+			worker.put(command);
+		}
+	}
+
+	/**
+	 * One call to be replayed on each sink.
+	 */
+	protected interface Command {
+		void run(Packager sink) throws IOException;
+	}
+
+	protected final static Command CLOSE = new Command() {
+		@Override
+		public void run(final Packager sink) throws IOException {
+			sink.close();
+		}
+	};
+
+	/**
+	 * The thread feeding one sink.
+	 */
+	protected static class Sink extends Thread {
+		protected final Packager packager;
+		protected final BlockingQueue<Command> queue = new ArrayBlockingQueue<Command>(QUEUE_SIZE);
+		protected volatile IOException failure;
+
+		public Sink(final Packager packager) {
+			super("fan-out" + packager.getExtension());
+			this.packager = packager;
+			setDaemon(true);
+		}
+
+		public void put(final Command command) throws IOException {
+			try {
+				while (!queue.offer(command, 100, TimeUnit.MILLISECONDS))
+					if (!isAlive())
+						throw failure != null ? failure : new IOException("Sink " + getName() + " stopped");
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted while writing " + packager.getExtension());
+			}
+		}
+
+		@Override
+		public void run() {
+			for (;;) {
+				final Command command;
+				try {
+					command = queue.take();
+				} catch (InterruptedException e) {
+					failure = new IOException("Interrupted");
+					return;
+				}
+				// after a failure, keep draining so the producer does not block, but still close the output
+				if (failure == null || command == CLOSE) try {
+					command.run(packager);
+				} catch (IOException e) {
+					if (failure == null)
+						failure = e;
+				} catch (RuntimeException e) {
+					if (failure == null)
+						failure = new IOException(e);
+				}
+				if (command == CLOSE)
+					return;
+			}
+		}
+	}
+}
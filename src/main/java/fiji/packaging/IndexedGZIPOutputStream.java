@@ -0,0 +1,222 @@
+package fiji.packaging;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * A gzip stream made of independent members, with an index of the tar entries.
+ * <p>
+ * Like <i>BGZF</i>, the output is a series of complete gzip members, each of
+ * which can be decompressed on its own, while stock tools see a single gzip
+ * stream. A member holds up to one block; a new member is started before an
+ * entry that would not fit into the current one, so that small entries do not
+ * straddle members. The members are deflated in parallel.
+ * </p>
+ * <p>
+ * When the stream is closed, the {@link TarGzIndex} is appended as empty
+ * members, which decompress to nothing.
+ * </p>
+ */
+public class IndexedGZIPOutputStream extends OutputStream {
+	protected OutputStream out;
+	protected ExecutorService executor;
+	protected boolean sharedExecutor;
+	protected int level = Deflater.DEFAULT_COMPRESSION, maxPending;
+	protected Deque<Future<Member>> pending = new ArrayDeque<Future<Member>>();
+	protected final TarGzIndex index = new TarGzIndex();
+	protected final int blockSize;
+	protected Member member;
+	protected long offset;
+	protected boolean closed;
+	protected BuildStatistics statistics;
+
+	public IndexedGZIPOutputStream(final OutputStream out, final int threads, final int blockSize) {
+		this(out, threads, blockSize, null);
+	}
+
+	/**
+	 * @param executor the pool to deflate on, shared with other streams, or null to start a pool of the given size
+	 */
+	public IndexedGZIPOutputStream(final OutputStream out, final int threads, final int blockSize, final ExecutorService executor) {
+		if (blockSize <= 0)
+			throw new IllegalArgumentException("Invalid block size: " + blockSize);
+		this.out = out;
+		this.blockSize = blockSize;
+		final int count = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+		sharedExecutor = executor != null;
+		this.executor = sharedExecutor ? executor : Executors.newFixedThreadPool(count, new DaemonThreadFactory("gzip-member"));
+		maxPending = 2 * count;
+		member = new Member(blockSize);
+	}
+
+	/**
+	 * Sets the statistics to add the time spent on the pool to.
+	 */
+	public void setStatistics(final BuildStatistics statistics) {
+		this.statistics = statistics;
+	}
+
+	/**
+	 * Starts a new member unless the next entry fits into the current one.
+	 *
+	 * @param length the number of bytes the entry will take, including its headers
+	 */
+	public void startEntry(final long length) throws IOException {
+		if (member.length > 0 && member.length + length > blockSize)
+			submit();
+	}
+
+	/**
+	 * Records that the contents of a file start at the current position.
+	 */
+	public void addToIndex(final String path, final long size) throws IOException {
+		if (member.length == blockSize)
+			submit();
+		final TarGzIndex.Entry entry = new TarGzIndex.Entry(path, member.length, size);
+		member.entries.add(entry);
+		index.add(entry);
+	}
+
+	/**
+	 * Returns the index; the member offsets are only known once the stream is closed.
+	 */
+	public TarGzIndex getIndex() {
+		return index;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (closed)
+			throw new IOException("Stream closed");
+		while (len > 0) {
+			if (member.length == blockSize)
+				submit();
+			final int count = Math.min(len, blockSize - member.length);
+			System.arraycopy(b, off, member.input, member.length, count);
+			member.length += count;
+			off += count;
+			len -= count;
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed)
+			return;
+		closed = true;
+		try {
+			if (member.length > 0 || !member.entries.isEmpty())
+				submit();
+			while (!pending.isEmpty())
+				writeNextPending();
+			index.write(out, offset);
+			out.close();
+		} finally {
+			if (sharedExecutor)
+				for (final Future<Member> future : pending)
+					future.cancel(true);
+			else
+				executor.shutdownNow();
+		}
+	}
+
+	protected void submit() throws IOException {
+		while (pending.size() >= maxPending)
+			writeNextPending();
+		pending.add(executor.submit(member));
+		member = new Member(blockSize);
+	}
+
+	protected void writeNextPending() throws IOException {
+		final Member done;
+		try {
+			done = pending.removeFirst().get();
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while deflating");
+		} catch (ExecutionException e) {
+			throw new IOException("Could not deflate: " + e.getCause(), e.getCause());
+		}
+		for (final TarGzIndex.Entry entry : done.entries)
+			entry.memberOffset = offset;
+		if (statistics != null)
+			statistics.addPoolCompressTime(done.nanos);
+		out.write(done.output, 0, done.outputLength);
+		offset += done.outputLength;
+	}
+
+	/**
+	 * One complete gzip member.
+	 */
+	protected class Member implements Callable<Member> {
+		protected final byte[] input;
+		protected int length;
+		protected final List<TarGzIndex.Entry> entries = new ArrayList<TarGzIndex.Entry>();
+		protected byte[] output;
+		protected int outputLength;
+		protected long nanos;
+
+		public Member(final int blockSize) {
+			input = new byte[blockSize];
+		}
+
+		@Override
+		public Member call() {
+			final long start = System.nanoTime();
+			final CRC32 crc = new CRC32();
+			crc.update(input, 0, length);
+			output = new byte[length + length / 16 + 64];
+			// magic, method, no flags, no mtime, no extra flags, unknown OS
+			output[0] = 0x1f;
+			output[1] = (byte) 0x8b;
+			output[2] = Deflater.DEFLATED;
+			output[9] = (byte) 0xff;
+			outputLength = 10;
+			final Deflater deflater = new Deflater(level, true);
+			try {
+				deflater.setInput(input, 0, length);
+				deflater.finish();
+				while (!deflater.finished()) {
+					if (outputLength == output.length)
+						grow();
+					outputLength += deflater.deflate(output, outputLength, output.length - outputLength);
+				}
+			} finally {
+				deflater.end();
+			}
+			if (outputLength + 8 > output.length)
+				grow();
+			ParallelGZIPOutputStream.putInt(output, outputLength, (int) crc.getValue());
+			ParallelGZIPOutputStream.putInt(output, outputLength + 4, length);
+			outputLength += 8;
+			nanos = System.nanoTime() - start;
+			return this;
+		}
+
+		protected void grow() {
+			final byte[] grown = new byte[2 * output.length];
+			System.arraycopy(output, 0, grown, 0, outputLength);
+			output = grown;
+		}
+	}
+}
@@ -0,0 +1,97 @@
+package fiji.packaging;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The list of files in a package, with their sizes and checksums.
+ * <p>
+ * The checksums are the updater's where available; other files (launchers,
+ * JREs) get a plain SHA-1 prefixed with {@code sha1:}. A previous build's
+ * manifest is what {@link Packager#setPreviousManifest(Manifest)} compares
+ * against to write delta packages.
+ * </p>
+ */
+public class Manifest {
+	private final static String HEADER = "# Fiji Package Maker manifest v1";
+	private final static Charset UTF8 = Charset.forName("UTF-8");
+
+	private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+
+	/**
+	 * One file in the package.
+	 */
+	public static class Entry {
+		public final String path, checksum;
+		public final long size;
+
+		public Entry(final String path, final long size, final String checksum) {
+			this.path = path;
+			this.size = size;
+			this.checksum = checksum;
+		}
+
+		public boolean matches(final Entry other) {
+			return other != null && size == other.size && checksum.equals(other.checksum);
+		}
+	}
+
+	public void put(final String path, final long size, final String checksum) {
+		entries.put(path, new Entry(path, size, checksum));
+	}
+
+	public Entry get(final String path) {
+		return entries.get(path);
+	}
+
+	public Collection<Entry> entries() {
+		return entries.values();
+	}
+
+	public static Manifest read(final File file) throws IOException {
+		final Manifest result = new Manifest();
+		final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8));
+		try {
+			if (!HEADER.equals(reader.readLine()))
+				throw new IOException("Not a manifest: " + file);
+			for (;;) {
+				final String line = reader.readLine();
+				if (line == null)
+					return result;
+				final String[] fields = line.split("\t", 3);
+				if (fields.length != 3)
+					throw new IOException("Invalid manifest line: " + line);
+				try {
+					result.put(fields[2], Long.parseLong(fields[0]), fields[1]);
+				} catch (NumberFormatException e) {
+					throw new IOException("Invalid manifest line: " + line);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	public void write(final File file) throws IOException {
+		final PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), UTF8));
+		try {
+			writer.println(HEADER);
+			for (final Entry entry : entries.values())
+				writer.println(entry.size + "\t" + entry.checksum + "\t" + entry.path);
+		} finally {
+			writer.close();
+		}
+		if (writer.checkError())
+			throw new IOException("Could not write " + file);
+	}
+}
@@ -0,0 +1,133 @@
+package fiji.packaging;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A file to package, with the attributes collected while scanning.
+ * <p>
+ * The attributes are read once, with a single {@code stat} call where the
+ * file system supports it, and are handed through to every
+ * {@link Packager#putNextEntry(String, PackageEntry)} implementation, so that
+ * no further system calls are needed per file.
+ * </p>
+ */
+public class PackageEntry {
+	private final static Map<String, Integer> platformBits = new HashMap<String, Integer>();
+
+	/**
+	 * The path relative to the ImageJ root, as listed by the updater.
+	 */
+	public final String path;
+	public final long size, mtime;
+	public final int mode;
+	/**
+	 * The updater checksum, or null if the file is not managed by the updater.
+	 */
+	public final String checksum;
+	/**
+	 * The platforms the file is for, as returned by {@link #getPlatformMask(Iterable)}; 0 means all platforms.
+	 */
+	public final int platforms;
+
+	public PackageEntry(final String path, final long size, final long mtime, final int mode, final String checksum, final int platforms) {
+		this.path = path;
+		this.size = size;
+		this.mtime = mtime;
+		this.mode = mode;
+		this.checksum = checksum;
+		this.platforms = platforms;
+	}
+
+	public boolean isExecutable() {
+		return (mode & 0111) != 0;
+	}
+
+	public PackageEntry withMode(final int mode) {
+		return new PackageEntry(path, size, mtime, mode, checksum, platforms);
+	}
+
+	public boolean isForPlatforms(final String... wanted) {
+		if (wanted.length == 0 || platforms == 0)
+			return true;
+		for (final String platform : wanted)
+			if ((platforms & getPlatformBit(platform)) != 0)
+				return true;
+		return false;
+	}
+
+	/**
+	 * Reads the attributes of a file.
+	 *
+	 * @param file the file to stat
+	 * @param path the path to record
+	 * @return the entry, or null if the file does not exist or is not a regular file
+	 */
+	public static PackageEntry stat(final File file, final String path, final String checksum, final int platforms) throws IOException {
+		final Path nioPath = file.toPath();
+		final BasicFileAttributes attributes;
+		try {
+			attributes = readAttributes(nioPath);
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+		if (!attributes.isRegularFile())
+			return null;
+		return create(nioPath, path, attributes, checksum, platforms);
+	}
+
+	/**
+	 * Makes an entry from attributes that were already read.
+	 */
+	static PackageEntry create(final Path file, final String path, final BasicFileAttributes attributes, final String checksum, final int platforms) {
+		final int mode = attributes instanceof PosixFileAttributes ?
+			getMode(((PosixFileAttributes) attributes).permissions()) :
+			Files.isExecutable(file) ? 0755 : 0644;
+		return new PackageEntry(path, attributes.size(), attributes.lastModifiedTime().toMillis(), mode, checksum, platforms);
+	}
+
+	/**
+	 * Reads POSIX attributes where supported, basic ones otherwise.
+	 */
+	static BasicFileAttributes readAttributes(final Path path) throws IOException {
+		try {
+			return Files.readAttributes(path, PosixFileAttributes.class);
+		} catch (UnsupportedOperationException e) {
+			return Files.readAttributes(path, BasicFileAttributes.class);
+		}
+	}
+
+	static int getMode(final Set<PosixFilePermission> permissions) {
+		int mode = 0;
+		for (final PosixFilePermission permission : permissions)
+			mode |= 0400 >> permission.ordinal();
+		return mode;
+	}
+
+	public static int getPlatformMask(final Iterable<String> platforms) {
+		int mask = 0;
+		for (final String platform : platforms)
+			mask |= getPlatformBit(platform);
+		return mask;
+	}
+
+	private static synchronized int getPlatformBit(final String platform) {
+		Integer bit = platformBits.get(platform);
+		if (bit == null) {
+			if (platformBits.size() >= 31)
+				throw new IllegalStateException("Too many platforms");
+			bit = 1 << platformBits.size();
+			platformBits.put(platform, bit);
+		}
+		return bit;
+	}
+}
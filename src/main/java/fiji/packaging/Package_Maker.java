@@ -16,9 +16,11 @@ public class Package_Maker implements PlugIn {
 	public void run(String arg) {
 		List<Packager> packagers = new ArrayList<Packager>();
 		packagers.add(new ZipPackager());
-		try { packagers.add(new TarBz2Packager()); } catch (Exception e) { /* ignore */ }
+		packagers.add(new TarBz2Packager());
 		packagers.add(new TarGzPackager());
 		packagers.add(new TarPackager());
+		if (TarZstPackager.isAvailable())
+			packagers.add(new TarZstPackager());
 
 		String[] types = new String[packagers.size()];
 		for (int i = 0; i < types.length; i++)
@@ -27,12 +29,28 @@ public class Package_Maker implements PlugIn {
 		GenericDialogPlus gd = new GenericDialogPlus("Make Fiji Package");
 		gd.addChoice("Type", types, types[IJ.isWindows() ? 0 : 1]);
 		gd.addCheckbox("Include_Java_Runtime", false);
+		gd.addNumericField("Threads", Runtime.getRuntime().availableProcessors(), 0);
+		gd.addNumericField("Block_size (kB)", 128, 0);
+		gd.addCheckbox("Store_compressed_files (ZIP only)", false);
 		gd.showDialog();
 		if (gd.wasCanceled())
 			return;
 
 		Packager packager = packagers.get(gd.getNextChoiceIndex());
 		final boolean includeJRE = gd.getNextBoolean();
+		final int threads = (int) gd.getNextNumber();
+		final int blockSize = (int) gd.getNextNumber();
+		final boolean storeCompressed = gd.getNextBoolean();
+		if (blockSize < Packager.MIN_BLOCK_SIZE / 1024 || blockSize > Packager.MAX_BLOCK_SIZE / 1024) {
+			IJ.error("The block size must be between " + (Packager.MIN_BLOCK_SIZE / 1024) + " and " + (Packager.MAX_BLOCK_SIZE / 1024) + " kB");
+			return;
+		}
+		if (threads > 1 && packager instanceof ZipPackager)
+			packager = new ParallelZipPackager();
+		if (storeCompressed && packager instanceof ZipPackager)
+			((ZipPackager) packager).setStoreRule(StoreRules.DEFAULT);
+		packager.setThreads(threads);
+		packager.setBlockSize(1024 * blockSize);
 
 		String platform = Packager.getPlatform();
 		String timestamp = new SimpleDateFormat("yyyyMMddhhmmss").format(new Date());
@@ -1,20 +1,26 @@
 package fiji.packaging;
 
-import ij.IJ;
-
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.LinkedHashSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
 
 import net.imagej.updater.Checksummer;
 import net.imagej.updater.FileObject;
@@ -23,22 +29,93 @@ import net.imagej.updater.util.Progress;
 
 public abstract class Packager {
 	protected File ijDir;
-	protected Collection<String> files;
+	protected Map<String, PackageEntry> files;
+	protected Manifest previousManifest, manifest;
 	protected String prefix = "Fiji.app/";
+	protected int threads = 1;
+	protected int blockSize = 128 * 1024;
+	protected int readAheadThreads;
+	protected long readAheadMemory = 64l << 20;
+	protected ReadAheadPipeline readAhead;
+	protected long mapThreshold = 16l << 20;
+	protected long timestamp = -1;
+	protected ExecutorService sharedExecutor;
+	protected BuildStatistics statistics = new BuildStatistics();
+	/** The compressed size of the entry written last, if the format knows it right away, or -1. */
+	protected long compressedSize = -1;
+	/** The Flight Recorder event of the entry being added, or null, and the counters at its start. */
+	protected Object entryEvent;
+	protected long eventReadNanos, eventCompressNanos, eventOutputNanos;
+	protected ProgressSink progress;
 
 	protected byte[] buffer = new byte[16384];
 
+	/**
+	 * The name of the entry listing the files removed since the previous build.
+	 */
+	public final static String DELTA_REMOVALS = "delta-removals.txt";
+
+	/**
+	 * The largest region of a file that is mapped at once.
+	 */
+	protected final static long MAP_WINDOW = 1l << 30;
+
+	/**
+	 * The range of block sizes: every block holds the dictionary for the next
+	 * one, and every compression thread keeps a few blocks in memory.
+	 */
+	public final static int MIN_BLOCK_SIZE = 32 * 1024, MAX_BLOCK_SIZE = 64 * 1024 * 1024;
+
 	public abstract String getExtension();
 
 	public abstract void open(OutputStream out) throws IOException;
-	public abstract void putNextEntry(String name, boolean executable, int size) throws IOException;
+	public abstract void putNextEntry(String name, PackageEntry entry) throws IOException;
 	public abstract void write(byte[] b, int off, int len) throws IOException;
 	public abstract void closeEntry() throws IOException;
 	public abstract void close() throws IOException;
 
+	/**
+	 * Starts an entry that does not correspond to a scanned file.
+	 */
+	public void putNextEntry(String name, boolean executable, long size) throws IOException {
+		putNextEntry(name, new PackageEntry(name, size, System.currentTimeMillis(), executable ? 0755 : 0644, null, 0));
+	}
+
+	/**
+	 * Writes the remaining bytes of a buffer into the current entry.
+	 * <p>
+	 * Subclasses that can consume buffers directly, e.g. memory-mapped files,
+	 * should override this method; the default copies the bytes to the heap.
+	 * Implementations may hold on to direct buffers until the entry is
+	 * written, therefore their contents must not change afterwards.
+	 * </p>
+	 */
+	public void write(ByteBuffer buffer) throws IOException {
+		writeCopy(buffer);
+	}
+
+	/**
+	 * Writes the remaining bytes of a buffer into the current entry via
+	 * {@link #write(byte[], int, int)}, copying them to the heap if needed.
+	 */
+	protected void writeCopy(ByteBuffer buffer) throws IOException {
+		if (buffer.hasArray()) {
+			write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+			buffer.position(buffer.limit());
+			return;
+		}
+		while (buffer.hasRemaining()) {
+			final int count = Math.min(this.buffer.length, buffer.remaining());
+			buffer.get(this.buffer, 0, count);
+			write(this.buffer, 0, count);
+		}
+	}
+
 	public void write(InputStream in) throws IOException {
 		for (;;) {
+			final long start = System.nanoTime();
 			int count = in.read(buffer);
+			statistics.addReadTime(System.nanoTime() - start);
 			if (count < 0)
 				break;
 			write(buffer, 0, count);
@@ -46,6 +123,48 @@ public abstract class Packager {
 		in.close();
 	}
 
+	/**
+	 * Adds a file as a single entry; subclasses may inspect the file before
+	 * the entry is started.
+	 */
+	protected void addEntry(final String name, final PackageEntry entry, final File file) throws IOException {
+		putNextEntry(name, entry);
+		writeFile(file);
+		closeEntry();
+	}
+
+	/**
+	 * Whether {@link #addEntry(String, PackageEntry, File)} may write entries
+	 * without reading the files, e.g. by copying them from a previous build.
+	 */
+	protected boolean copiesEntries() {
+		return false;
+	}
+
+	/**
+	 * Writes the contents of a file into the current entry; large files are
+	 * memory-mapped and handed to {@link #write(ByteBuffer)}.
+	 */
+	protected void writeFile(final File file) throws IOException {
+		if (readAhead != null) {
+			readAhead.writeTo(file, this);
+			return;
+		}
+		final FileInputStream in = new FileInputStream(file);
+		try {
+			final FileChannel channel = in.getChannel();
+			final long size = channel.size();
+			if (size < mapThreshold) {
+				write(in);
+				return;
+			}
+			for (long position = 0; position < size; position += MAP_WINDOW)
+				write(channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_WINDOW, size - position)));
+		} finally {
+			in.close();
+		}
+	}
+
 	public void setRootDirectory(final File rootDirectory) {
 		ijDir = rootDirectory;
 	}
@@ -54,7 +173,126 @@ public abstract class Packager {
 		this.prefix = prefix;
 	}
 
+	/**
+	 * Sets the number of threads the packager may use for compression.
+	 */
+	public void setThreads(final int threads) {
+		this.threads = threads;
+	}
+
+	/**
+	 * Sets the size of the blocks that are compressed in parallel.
+	 *
+	 * @throws IllegalArgumentException if the size is not between {@link #MIN_BLOCK_SIZE} and {@link #MAX_BLOCK_SIZE}
+	 */
+	public void setBlockSize(final int blockSize) {
+		if (blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE)
+			throw new IllegalArgumentException("Invalid block size: " + blockSize + " bytes (must be between "
+				+ (MIN_BLOCK_SIZE / 1024) + " and " + (MAX_BLOCK_SIZE / 1024) + " kB)");
+		this.blockSize = blockSize;
+	}
+
+	/**
+	 * Sets the size from which on files are memory-mapped rather than read.
+	 *
+	 * @param mapThreshold the size in bytes, or {@link Long#MAX_VALUE} to never map files
+	 */
+	public void setMapThreshold(final long mapThreshold) {
+		this.mapThreshold = mapThreshold;
+	}
+
+	/**
+	 * Makes {@link #addDefaultFiles()} prefetch the files in background threads.
+	 *
+	 * @param threads the number of reader threads, or 0 to read the files one by one
+	 * @param memory the maximal number of bytes to prefetch
+	 */
+	public void setReadAhead(final int threads, final long memory) {
+		readAheadThreads = threads;
+		readAheadMemory = memory;
+	}
+
+	/**
+	 * Makes the archives reproducible: all entries get the same modification
+	 * time, and the files are written sorted by path, so that the same files
+	 * result in the same bytes.
+	 *
+	 * @param timestamp the time in milliseconds since the epoch, or -1 to use the current time and the scan order
+	 */
+	public void setReproducible(final long timestamp) {
+		this.timestamp = timestamp;
+	}
+
+	/**
+	 * Makes the packager compress on a pool shared with other packagers.
+	 * <p>
+	 * The pool's size bounds the compression threads of all packagers
+	 * together; it is not shut down when the packager is closed.
+	 * </p>
+	 */
+	public void setExecutor(final ExecutorService executor) {
+		sharedExecutor = executor;
+	}
+
+	/**
+	 * Sets where the progress of checksumming and writing is shown, e.g. a sink shared by several packagers.
+	 */
+	public void setProgress(final ProgressSink progress) {
+		this.progress = progress;
+	}
+
+	protected ProgressSink getProgress() {
+		if (progress == null)
+			progress = ProgressSink.createDefault();
+		return progress;
+	}
+
+	/**
+	 * Returns the counters and timers of this packager's build.
+	 */
+	public BuildStatistics getStatistics() {
+		return statistics;
+	}
+
 	public void initialize(boolean includeJRE, String... platforms) throws Exception {
+		initializeRootDirectory();
+		files = new LinkedHashMap<String, PackageEntry>();
+		addToFileList("db.xml.gz");
+		// Maybe there is a launcher?
+		addToFileList("ImageJ");
+		addToFileList("Contents/Info.plist");
+		manifest = null;
+		final long start = statistics.startPhase(BuildStatistics.CHECKSUM);
+		final Object event = PackagerEvents.beginChecksum();
+		adapter.getFileList(files, ijDir, getProgress(), platforms);
+		if (event != null) {
+			long bytes = 0;
+			for (final PackageEntry entry : files.values())
+				bytes += entry.size;
+			PackagerEvents.commitChecksum(event, files.size(), bytes);
+		}
+		statistics.endPhase(BuildStatistics.CHECKSUM, start);
+		if (includeJRE)
+			getJREFiles(platforms);
+	}
+
+	/**
+	 * Initializes the file list from a scan shared with other packagers.
+	 *
+	 * @param scanned the files for all platforms, as listed by {@link #getFiles()} after {@link #initialize(boolean, String...)}
+	 */
+	public void initialize(final Map<String, PackageEntry> scanned, boolean includeJRE, String... platforms) throws IOException {
+		initializeRootDirectory();
+		files = new LinkedHashMap<String, PackageEntry>();
+		for (final PackageEntry entry : scanned.values())
+			if (entry.isForPlatforms(platforms))
+				files.put(entry.path, entry);
+		manifest = null;
+		if (includeJRE)
+			getJREFiles(platforms);
+	}
+
+	private void initializeRootDirectory() {
 		if (System.getProperty("ij.dir") == null)
 			throw new UnsupportedOperationException("Need an ij.dir property pointing to the ImageJ root!");
 		String ijDirProperty = System.getProperty("imagej.dir");
@@ -62,23 +300,29 @@ public abstract class Packager {
 			ijDirProperty = System.getProperty("ij.dir");
 		}
 		ijDir = new File(ijDirProperty);
-		files = new LinkedHashSet<String>();
-		files.add("db.xml.gz");
-		// Maybe ImageJ.sh, ImageJ or ImageJ.exe exist?
-		for (final String fileName : new String[] { "ImageJ", "ImageJ.exe", "ImageJ.sh" })
-			if (new File(ijDir, fileName).exists())
-				files.add("ImageJ");
-		files.add("Contents/Info.plist");
-		adapter.getFileList(files, ijDir, platforms);
-		if (includeJRE)
-			getJREFiles(platforms);
+	}
+
+	/**
+	 * Returns the files to package, by path.
+	 */
+	public Map<String, PackageEntry> getFiles() {
+		return files;
+	}
+
+	/**
+	 * Adds a file that is not managed by the updater to the list, if it exists.
+	 */
+	protected void addToFileList(final String path) throws IOException {
+		final PackageEntry entry = PackageEntry.stat(new File(ijDir, getLocalPath(path)), path, null, 0);
+		if (entry != null && !files.containsKey(path))
+			files.put(path, entry);
 	}
 
 	/**
 	 * An interface to hide the implementation details of the updater.
 	 */
 	private interface Adapter {
-		void getFileList(Collection<String> list, File ijDir, String... platforms);
+		void getFileList(Map<String, PackageEntry> list, File ijDir, ProgressSink progress, String... platforms);
 	}
 
 	private static Adapter adapter;
@@ -95,50 +339,83 @@ public abstract class Packager {
 	 * An adapter for the current updater (encapsulated to handle version skew by falling back to {@link LegacyUpdater}).
 	 */
 	private static class ModernUpdater implements Adapter {
-		private final Progress progress = IJ.getInstance() == null ? null : new ProgressAdapter();
-
 		@Override
-		public void getFileList(Collection<String> list, File ijDir, String... platforms) {
-			final FilesCollection files = new FilesCollection(ijDir);
-			final Checksummer checksummer = new Checksummer(files, progress);
-
-			checksummer.updateFromLocal();
-			files.sort();
-			for (final FileObject file : files) {
-				if (isForPlatforms(file, platforms))
-					list.add(file.getLocalFilename(false));
+		public void getFileList(Map<String, PackageEntry> list, File ijDir, ProgressSink sink, String... platforms) {
+			sink.begin("Checksumming", 0);
+			try {
+				getFileList(list, ijDir, new ProgressAdapter(sink), platforms);
+			} finally {
+				sink.end();
 			}
 		}
 
-		private boolean isForPlatforms(final FileObject file, String... platforms) {
-			if (platforms.length == 0 || !file.getPlatforms().iterator().hasNext())
-				return true;
-			for (final String platform : platforms) {
-				if (file.isForPlatform(platform))
-					return true;
+		private void getFileList(Map<String, PackageEntry> list, File ijDir, Progress progress, String... platforms) {
+			final ChecksumCache cache = new ChecksumCache(ijDir);
+			if (!cache.read() || !cache.directoriesUnchanged()) {
+				// files might have been added or removed: full scan
+				cache.clear();
+				cache.recordDirectories();
+				final FilesCollection files = new FilesCollection(ijDir);
+				final Checksummer checksummer = new Checksummer(files, progress);
+
+				checksummer.updateFromLocal();
+				files.sort();
+				for (final FileObject file : files)
+					cache.put(file.getLocalFilename(false), file.getChecksum(), file.getPlatforms());
+			}
+			else {
+				// only checksum the files whose stat data changed
+				final List<String> changed = cache.removeChanged();
+				if (!changed.isEmpty()) {
+					final FilesCollection files = new FilesCollection(ijDir);
+					final Checksummer checksummer = new Checksummer(files, progress);
+
+					checksummer.updateFromLocal(changed);
+					for (final FileObject file : files)
+						cache.put(file.getLocalFilename(false), file.getChecksum(), file.getPlatforms());
+				}
+			}
+			try {
+				cache.write();
+			} catch (IOException e) {
+				System.err.println("Warning: could not write checksum cache: " + e.getMessage());
+			}
+			for (final ChecksumCache.Entry entry : cache.entries()) {
+				final PackageEntry packageEntry = entry.toPackageEntry();
+				if (packageEntry.isForPlatforms(platforms))
+					list.put(entry.path, packageEntry);
 			}
-			return false;
 		}
 
 	}
 
 	/**
-	 * An ImageJ 1.x compatible {@link Progress}.
+	 * Passes the updater's {@link Progress} on to a {@link ProgressSink}, without blocking the checksummer.
 	 */
 	private static class ProgressAdapter implements Progress {
+		private final ProgressSink sink;
+		private int count, total;
+
+		private ProgressAdapter(final ProgressSink sink) {
+			this.sink = sink;
+		}
+
 		@Override
 		public void setTitle(String title) {
-			IJ.showStatus(title);
+			sink.setTitle(title);
 		}
 
 		@Override
 		public void setCount(int count, int total) {
-			IJ.showProgress(count, total);
+			sink.addDone(count - this.count);
+			sink.addTotal(total - this.total);
+			this.count = count;
+			this.total = total;
 		}
 
 		@Override
 		public void addItem(Object item) {
-			IJ.showStatus("" + item);
+			sink.setItem("" + item);
 		}
 
 		@Override
@@ -151,7 +428,7 @@ public abstract class Packager {
 
 		@Override
 		public void done() {
-			IJ.showStatus("Finished checksumming");
+			sink.setTitle("Finished checksumming");
 		}
 	}
 
@@ -162,6 +439,7 @@ public abstract class Packager {
 		final Class<?> filesCollectionClass, fileObjectClass, checksummerClass, progressClass, stderrProgressClass;
 		final Constructor<?> filesCollectionConstructor, stderrProgressConstructor, checksummerConstructor;
 		final Method updateFromLocal, sort, getLocalFilename, getPlatforms, isForPlatform;
+		Method getChecksum;
 
 		{
 			final ClassLoader loader = getClass().getClassLoader();
@@ -174,6 +452,11 @@ public abstract class Packager {
 				getLocalFilename = fileObjectClass.getMethod("getLocalFilename", Boolean.TYPE);
 				getPlatforms = fileObjectClass.getMethod("getPlatforms");
 				isForPlatform = fileObjectClass.getMethod("isForPlatform", String.class);
+				try {
+					getChecksum = fileObjectClass.getMethod("getChecksum");
+				} catch (NoSuchMethodException e) {
+					// delta packages will checksum the files themselves
+				}
 
 				progressClass = loader.loadClass("imagej.updater.util.Progress");
 				stderrProgressClass = loader.loadClass("imagej.updater.util.StderrProgress");
@@ -191,7 +474,7 @@ public abstract class Packager {
 		}
 
 		@Override
-		public void getFileList(Collection<String> list, File ijDir, String... platforms) {
+		public void getFileList(Map<String, PackageEntry> list, File ijDir, ProgressSink sink, String... platforms) {
 			try {
 				final Object files = filesCollectionConstructor.newInstance(ijDir);
 				final Object progress = stderrProgressConstructor.newInstance();
@@ -204,7 +487,12 @@ public abstract class Packager {
 				for (final Object file : iterable) {
 					if (isForPlatforms(file, platforms)) {
 						final String path = (String) getLocalFilename.invoke(file, false);
-						list.add(path);
+						final String checksum = getChecksum == null ? null : (String) getChecksum.invoke(file);
+						@SuppressWarnings("unchecked")
+						final int mask = PackageEntry.getPlatformMask((Iterable<String>) getPlatforms.invoke(file));
+						final PackageEntry entry = PackageEntry.stat(new File(ijDir, toLocalPath(path)), path, checksum, mask);
+						if (entry != null)
+							list.put(path, entry);
 					}
 				}
 			} catch (Throwable t) {
@@ -238,19 +526,124 @@ public abstract class Packager {
 	}
 
 	public void addDefaultFiles() throws IOException {
-		boolean logToStdout = IJ.getInstance() == null;
-		if (logToStdout) System.out.println("Writing files");
-		else IJ.showStatus("Writing files");
-		int count = 0;
-		for (String fileName : files) {
-			addFile(fileName, false);
-			if (logToStdout) System.out.print(".");
-			else IJ.showProgress(count++, files.size());
+		Collection<PackageEntry> files = this.files.values();
+		List<String> removed = null;
+		if (previousManifest != null) {
+			// delta package: only added and modified files, plus a list of removed ones
+			final Manifest current = getManifest();
+			files = new ArrayList<PackageEntry>();
+			for (final Manifest.Entry entry : current.entries())
+				if (!entry.matches(previousManifest.get(entry.path)))
+					files.add(this.files.get(entry.path));
+			removed = new ArrayList<String>();
+			for (final Manifest.Entry entry : previousManifest.entries())
+				if (current.get(entry.path) == null)
+					removed.add(entry.path);
+		}
+		if (timestamp >= 0) {
+			// do not depend on the order the file system lists the files in
+			final List<PackageEntry> sorted = new ArrayList<PackageEntry>(files);
+			Collections.sort(sorted, new Comparator<PackageEntry>() {
+				@Override
+				public int compare(final PackageEntry a, final PackageEntry b) {
+					return a.path.compareTo(b.path);
+				}
+			});
+			files = sorted;
+			if (removed != null)
+				Collections.sort(removed);
+		}
+
+		final long start = statistics.startPhase(BuildStatistics.WRITE);
+		final ProgressSink progress = getProgress();
+		progress.begin("Writing files", files.size());
+		if (readAheadThreads > 0) {
+			final List<File> list = new ArrayList<File>();
+			for (final PackageEntry entry : files)
+				list.add(new File(ijDir, getLocalPath(entry.path)));
+			readAhead = new ReadAheadPipeline(list, readAheadThreads, readAheadMemory);
+		}
+		try {
+			for (final PackageEntry entry : files) {
+				addFile(entry, false);
+				progress.advance(entry.path);
+			}
+		} finally {
+			if (readAhead != null) {
+				readAhead.close();
+				readAhead = null;
+			}
+			progress.end();
+		}
+
+		if (removed != null) {
+			final StringBuilder list = new StringBuilder();
+			for (final String path : removed)
+				list.append(path).append('\n');
+			final byte[] bytes = list.toString().getBytes("UTF-8");
+			putNextEntry(prefix + DELTA_REMOVALS, false, bytes.length);
+			write(bytes, 0, bytes.length);
+			closeEntry();
+		}
+		statistics.endPhase(BuildStatistics.WRITE, start);
+	}
+
+	/**
+	 * Makes {@link #addDefaultFiles()} write a delta package against a previous build.
+	 * <p>
+	 * Only files that were added or modified since the previous build are
+	 * written, plus an entry named {@value #DELTA_REMOVALS} listing the removed
+	 * files.
+	 * </p>
+	 *
+	 * @param previous the manifest of the previous build, or null for a full package
+	 */
+	public void setPreviousManifest(final Manifest previous) {
+		previousManifest = previous;
+	}
+
+	/**
+	 * Returns the manifest of the files to package, reusing the updater's checksums.
+	 */
+	public Manifest getManifest() throws IOException {
+		if (manifest != null)
+			return manifest;
+		final Manifest result = new Manifest();
+		for (final PackageEntry entry : files.values()) {
+			String checksum = entry.checksum;
+			if (checksum == null)
+				checksum = "sha1:" + digest(new File(ijDir, getLocalPath(entry.path)));
+			result.put(entry.path, entry.size, checksum);
 		}
-		if (logToStdout) System.out.println();
+		return manifest = result;
+	}
+
+	private String digest(final File file) throws IOException {
+		final MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e.getMessage());
+		}
+		final InputStream in = new FileInputStream(file);
+		try {
+			for (;;) {
+				final int count = in.read(buffer);
+				if (count < 0)
+					break;
+				digest.update(buffer, 0, count);
+			}
+		} finally {
+			in.close();
+		}
+		final StringBuilder result = new StringBuilder();
+		for (final byte b : digest.digest())
+			result.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		return result.toString();
 	}
 
 	private void getJREFiles(String... platforms) throws IOException {
+		final long start = statistics.startPhase(BuildStatistics.JRE);
 		final File javaDir = new File(ijDir, "java");
 		final List<String> directories = new ArrayList<String>();
 		if (platforms.length == 0) {
@@ -291,8 +684,15 @@ public abstract class Packager {
 				directories.add(dir);
 			}
 
-		for (final String dir : directories)
-			getFilesInDirectory(dir);
+		// walk all JREs in parallel, keeping the order of a recursive walk
+		for (final PackageEntry entry : DirectoryWalker.walk(ijDir, directories, Math.max(threads, Runtime.getRuntime().availableProcessors())))
+			if (!files.containsKey(entry.path))
+				files.put(entry.path, entry);
+		statistics.endPhase(BuildStatistics.JRE, start);
+	}
+
+	private String getNewestJRE(String dirName) {
+		return DirectoryWalker.getNewestJRE(ijDir, dirName);
 	}
 
 	private static class NoHiddenFiles implements FilenameFilter {
@@ -302,48 +702,42 @@ public abstract class Packager {
 		}
 	}
 
-	private String getNewestJRE(String dirName) {
-		final File[] list = new File(ijDir, dirName).listFiles();
-		if (list == null)
-			return null;
-		File result = null;
-		for (final File file : list) {
-			if (!file.isDirectory())
-				continue;
-			final File jre = new File(file, "jre");
-			if (!jre.isDirectory())
-				continue;
-			if (result == null || result.lastModified() < jre.lastModified())
-				result = file;
-		}
-		if (result == null)
-			return null;
-		return dirName + "/" + result.getName() + "/jre";
-	}
-
-	private boolean getFilesInDirectory(String dirName) throws IOException {
-		final File[] list = new File(ijDir, dirName).listFiles(new NoHiddenFiles());
-		if (list == null)
-			return false;
-		boolean result = true;
-		for (final File file : list)
-			if (file.isDirectory())
-				result = getFilesInDirectory(dirName + "/" + file.getName()) && result;
-			else if (file.isFile())
-				result = files.add(dirName + "/" + file.getName()) && result;
-		return result;
+	/**
+	 * Maps a file name from the list to its location inside the ImageJ directory.
+	 */
+	protected String getLocalPath(final String fileName) {
+		return toLocalPath(fileName);
 	}
 
-	public boolean addFile(String fileName, boolean executable) throws IOException {
+	static String toLocalPath(final String fileName) {
 		if (fileName.equals("ImageJ-macosx") || fileName.equals("ImageJ-tiger"))
-			fileName = "Contents/MacOS/" + fileName;
-		File file = new File(ijDir, fileName);
-		if (!file.exists())
+			return "Contents/MacOS/" + fileName;
+		return fileName;
+	}
+
+	public boolean addFile(String fileName, boolean executable) throws IOException {
+		PackageEntry entry = files == null ? null : files.get(fileName);
+		if (entry == null)
+			entry = PackageEntry.stat(new File(ijDir, getLocalPath(fileName)), fileName, null, 0);
+		if (entry == null)
 			return false;
+		return addFile(entry, executable);
+	}
+
+	/**
+	 * Adds a scanned file, using the attributes recorded during the scan.
+	 */
+	public boolean addFile(PackageEntry entry, boolean executable) throws IOException {
+		final String fileName = getLocalPath(entry.path);
+		final File file = new File(ijDir, fileName);
+		if (executable && !entry.isExecutable())
+			entry = entry.withMode(entry.mode | 0111);
+		beginEntryEvent();
 		try {
-			putNextEntry(prefix + fileName, executable || file.canExecute(), (int)file.length());
-			write(new FileInputStream(file));
-			closeEntry();
+			final long start = System.nanoTime();
+			addEntry(prefix + fileName, entry, file);
+			statistics.entryDone(entry.path, entry.size, System.nanoTime() - start);
+			commitEntryEvent(entry.path, entry.size, 0);
 		} catch (IOException e) {
 			if (e.getMessage().startsWith("File name too long"))
 				System.err.println("Skipping: " + e.getMessage());
@@ -353,6 +747,36 @@ public abstract class Packager {
 		return true;
 	}
 
+	/**
+	 * Starts the Flight Recorder event of an entry, if it is recorded.
+	 */
+	protected void beginEntryEvent() throws IOException {
+		compressedSize = -1;
+		entryEvent = PackagerEvents.beginEntry();
+		if (entryEvent == null)
+			return;
+		eventReadNanos = statistics.getReadNanos();
+		eventCompressNanos = statistics.getCompressNanos();
+		eventOutputNanos = statistics.getOutputNanos();
+	}
+
+	/**
+	 * Commits the event of the entry just added.
+	 * <p>
+	 * Packagers compressing entries in the background may hold on to the
+	 * event until the compressed size is known.
+	 * </p>
+	 *
+	 * @param readNanos the time spent reading the file on behalf of this packager, in addition to its own statistics
+	 */
+	protected void commitEntryEvent(final String path, final long size, final long readNanos) throws IOException {
+		if (entryEvent == null)
+			return;
+		PackagerEvents.commitEntry(entryEvent, path, size, compressedSize, statistics.getReadNanos() - eventReadNanos + readNanos,
+			statistics.getCompressNanos() - eventCompressNanos, statistics.getOutputNanos() - eventOutputNanos);
+		entryEvent = null;
+	}
+
 	protected static String getPlatform() {
 		final boolean is64bit = System.getProperty("os.arch", "").indexOf("64") >= 0;
 		final String osName = System.getProperty("os.name", "<unknown>");
@@ -366,70 +790,65 @@ public abstract class Packager {
 		return osName.toLowerCase();
 	}
 
+	/**
+	 * Returns a packager for the archive format implied by the file name, or null.
+	 */
+	public static Packager forFileName(final String fileName, final int threads) {
+		if (fileName.endsWith(".zip"))
+			return threads > 1 ? new ParallelZipPackager() : new ZipPackager();
+		if (fileName.endsWith(".tar"))
+			return new TarPackager();
+		if (fileName.endsWith(".tar.gz") || fileName.endsWith(".tgz"))
+			return new TarGzPackager();
+		if (fileName.endsWith(".tar.bz2") || fileName.endsWith(".tbz"))
+			return new TarBz2Packager();
+		if (fileName.endsWith(".tar.zst") || fileName.endsWith(".tzst"))
+			return new TarZstPackager();
+		return null;
+	}
+
 	public static void main(String[] args) {
-		boolean includeJRE = false;
-		String[] platforms = {};
-		String prefix = null;
+		final PackagerOptions options = new PackagerOptions();
 		int i = 0;
 		while (i < args.length && args[i].startsWith("-")) {
-			if (args[i].equals("--jre"))
-				includeJRE = true;
-			else if (args[i].startsWith("--platforms=")) {
-				platforms = args[i].substring("--platforms=".length()).split(",");
-				if (platforms.length == 1 && "".equals(platforms[0]))
-					platforms = new String[0];
-			}
-			else if (args[i].startsWith("-Dij.dir="))
-				System.setProperty("ij.dir", args[i].substring("-Dij.dir=".length()));
-			else if (args[i].startsWith("--prefix=")) {
-				prefix = args[i].substring("--prefix=".length());
-				if (!prefix.endsWith("/"))
-					prefix += "/";
-			}
-			else {
-				System.err.println("Unknown option: " + args[i]);
+			try {
+				if (!options.parse(args[i])) {
+					System.err.println("Unknown option: " + args[i]);
+					System.exit(1);
+				}
+			} catch (IllegalArgumentException e) {
+				System.err.println(e.getMessage());
 				System.exit(1);
 			}
 			i++;
 		}
-		Packager packager = null;
-		if (i + 1 == args.length) {
-			if (args[i].endsWith(".zip"))
-				packager = new ZipPackager();
-			else if (args[i].endsWith(".tar"))
-				packager = new TarPackager();
-			else if (args[i].endsWith(".tar.gz") || args[0].endsWith(".tgz"))
-				packager = new TarGzPackager();
-			else if (args[i].endsWith(".tar.bz2") || args[0].endsWith(".tbz")) try {
-				packager = new TarBz2Packager();
-			} catch (ClassNotFoundException e) {
-				e.printStackTrace();
+		if (options.batch != null) {
+			if (i < args.length) {
+				System.err.println("No file names allowed with --batch");
 				System.exit(1);
 			}
-			else {
-				System.err.println("Unsupported archive format: " + args[i]);
+			if (!Batch.run(new File(options.batch), options))
 				System.exit(1);
-			}
+			return;
 		}
-		else {
-			System.err.println("Usage: Package_Maker [--platform=<platform>[,<platform>]] [--jre] [--prefix=<directory>] <filename>");
+		if (i == args.length) {
+			System.err.println("Usage: Package_Maker " + PackagerOptions.USAGE + " <filename>...");
+			System.err.println("   or: Package_Maker " + PackagerOptions.USAGE + " --batch=<file>");
 			System.exit(1);
 		}
-		String path = args[i];
-
-		if (prefix != null)
-			packager.setPrefix(prefix);
-
+		final String[] paths = Arrays.copyOfRange(args, i, args.length);
 		try {
-			packager.initialize(includeJRE, platforms);
-			packager.open(new FileOutputStream(path));
-			packager.addDefaultFiles();
-			packager.close();
+			final Packager packager = options.createPackager(paths);
+			options.write(packager, paths, null, null);
+		}
+		catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
 		}
 		catch (Exception e) {
 			e.printStackTrace();
-			System.err.println("Error writing " + path);
+			System.err.println("Error writing " + Arrays.toString(paths));
 			System.exit(1);
 		}
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,167 @@
+package fiji.packaging;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Flight Recorder events of package builds.
+ * <p>
+ * The events are defined at runtime via {@code jdk.jfr.EventFactory}, so that
+ * the package maker still runs on Java 8. When Flight Recorder is not
+ * available or the events are not enabled in a recording, every method
+ * returns right away, without measuring anything.
+ * </p>
+ * <p>
+ * Start a build with {@code -XX:StartFlightRecording} and look for the
+ * events <i>fiji.packaging.Entry</i>, <i>fiji.packaging.Phase</i> and
+ * <i>fiji.packaging.Checksum</i>.
+ * </p>
+ */
+final class PackagerEvents {
+	private static Method newEvent, getEventType, isEnabled, begin, end, set, commit;
+	private static Object entryFactory, phaseFactory, checksumFactory;
+	private static Object entryType, phaseType, checksumType;
+
+	static {
+		try {
+			final Class<?> factoryClass = Class.forName("jdk.jfr.EventFactory");
+			final Class<?> eventClass = Class.forName("jdk.jfr.Event");
+			newEvent = factoryClass.getMethod("newEvent");
+			getEventType = factoryClass.getMethod("getEventType");
+			isEnabled = Class.forName("jdk.jfr.EventType").getMethod("isEnabled");
+			begin = eventClass.getMethod("begin");
+			end = eventClass.getMethod("end");
+			set = eventClass.getMethod("set", int.class, Object.class);
+			commit = eventClass.getMethod("commit");
+
+			final Definer definer = new Definer();
+			entryFactory = definer.define("fiji.packaging.Entry", "Package Entry", "A file added to a package",
+				definer.field(String.class, "path", "Path", null),
+				definer.field(long.class, "size", "Size", "DataAmount"),
+				definer.field(long.class, "compressedSize", "Compressed Size", "DataAmount"),
+				definer.field(long.class, "readTime", "Read Time", "Timespan"),
+				definer.field(long.class, "compressTime", "Compress Time", "Timespan"),
+				definer.field(long.class, "writeTime", "Write Time", "Timespan"));
+			phaseFactory = definer.define("fiji.packaging.Phase", "Package Phase", "A phase of a package build",
+				definer.field(String.class, "phase", "Phase", null),
+				definer.field(String.class, "archive", "Archive", null));
+			checksumFactory = definer.define("fiji.packaging.Checksum", "Package Checksum", "Checksumming the files via the updater",
+				definer.field(long.class, "files", "Files", null),
+				definer.field(long.class, "bytes", "Bytes", "DataAmount"));
+			entryType = getEventType.invoke(entryFactory);
+			phaseType = getEventType.invoke(phaseFactory);
+			checksumType = getEventType.invoke(checksumFactory);
+		} catch (Throwable t) {
+			// no Flight Recorder (e.g. Java 8)
+			entryFactory = phaseFactory = checksumFactory = null;
+		}
+	}
+
+	private PackagerEvents() {}
+
+	/**
+	 * Builds the event types with the {@code jdk.jfr} annotations.
+	 */
+	private static class Definer {
+		private final Constructor<?> annotation, descriptor;
+		private final Method create;
+
+		private Definer() throws Exception {
+			final Class<?> annotationClass = Class.forName("jdk.jfr.AnnotationElement");
+			annotation = annotationClass.getConstructor(Class.class, Object.class);
+			descriptor = Class.forName("jdk.jfr.ValueDescriptor").getConstructor(Class.class, String.class, List.class);
+			create = Class.forName("jdk.jfr.EventFactory").getMethod("create", List.class, List.class);
+		}
+
+		private Object annotation(final String name, final Object value) throws Exception {
+			return annotation.newInstance(Class.forName("jdk.jfr." + name), value);
+		}
+
+		/**
+		 * @param unit "DataAmount" for bytes, "Timespan" for nanoseconds, or null
+		 */
+		private Object field(final Class<?> type, final String name, final String label, final String unit) throws Exception {
+			final List<Object> annotations = new ArrayList<Object>();
+			annotations.add(annotation("Label", label));
+			if ("DataAmount".equals(unit))
+				annotations.add(annotation(unit, "BYTES"));
+			else if ("Timespan".equals(unit))
+				annotations.add(annotation(unit, "NANOSECONDS"));
+			return descriptor.newInstance(type, name, annotations);
+		}
+
+		private Object define(final String name, final String label, final String description, final Object... fields) throws Exception {
+			final List<Object> annotations = new ArrayList<Object>();
+			annotations.add(annotation("Name", name));
+			annotations.add(annotation("Label", label));
+			annotations.add(annotation("Description", description));
+			annotations.add(annotation("Category", new String[] { "Fiji", "Packaging" }));
+			// the stack traces would only show the reflection
+			annotations.add(annotation("StackTrace", false));
+			return create.invoke(null, annotations, Arrays.asList(fields));
+		}
+	}
+
+	private static Object begin(final Object factory, final Object type) {
+		if (factory == null)
+			return null;
+		try {
+			if (!(Boolean) isEnabled.invoke(type))
+				return null;
+			final Object event = newEvent.invoke(factory);
+			begin.invoke(event);
+			return event;
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	private static void commit(final Object event, final Object... values) {
+		try {
+			end.invoke(event);
+			for (int i = 0; i < values.length; i++)
+				set.invoke(event, i, values[i]);
+			commit.invoke(event);
+		} catch (Exception e) {
+			// drop the event
+		}
+	}
+
+	/**
+	 * Starts an entry event.
+	 *
+	 * @return the event, or null if it is not recorded
+	 */
+	static Object beginEntry() {
+		return begin(entryFactory, entryType);
+	}
+
+	/**
+	 * @param compressedSize the compressed size, or -1 if it is not known (yet)
+	 */
+	static void commitEntry(final Object event, final String path, final long size, final long compressedSize, final long readNanos, final long compressNanos, final long writeNanos) {
+		if (event != null)
+			commit(event, path, size, compressedSize, readNanos, compressNanos, writeNanos);
+	}
+
+	static Object beginPhase() {
+		return begin(phaseFactory, phaseType);
+	}
+
+	static void commitPhase(final Object event, final String phase, final String archive) {
+		if (event != null)
+			commit(event, phase, archive);
+	}
+
+	static Object beginChecksum() {
+		return begin(checksumFactory, checksumType);
+	}
+
+	static void commitChecksum(final Object event, final long files, final long bytes) {
+		if (event != null)
+			commit(event, files, bytes);
+	}
+}
@@ -0,0 +1,263 @@
+package fiji.packaging;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * The command-line options of {@link Packager#main(String[])}.
+ * <p>
+ * The lines of a batch file take the same options, with the ones from the
+ * command line as defaults.
+ * </p>
+ */
+class PackagerOptions implements Cloneable {
+	boolean includeJRE;
+	String[] platforms = {};
+	String prefix;
+	int threads = -1;
+	int blockSize = -1;
+	boolean storeCompressed;
+	String previousManifest, manifest;
+	int readAheadThreads;
+	long readAheadMemory = -1;
+	long mapThreshold = -1;
+	long timestamp = -1;
+	int zstdLevel = -1, zstdWindowLog;
+	boolean indexedGzip;
+	String batch;
+	String report;
+	String cache;
+	long cacheSize = 4l << 30;
+	CompressedEntryCache entryCache;
+	String previousZip, previousZipManifest;
+
+	final static String USAGE = "[--platforms=<platform>[,<platform>]] [--jre] [--prefix=<directory>] [--threads=<count>] [--block-size=<kilobytes>] [--store-compressed] [--previous-manifest=<file>] [--manifest=<file>] [--read-ahead=<threads>] [--read-ahead-memory=<megabytes>] [--map-threshold=<megabytes>] [--reproducible[=<seconds>]] [--zstd-level=<level>] [--zstd-long=<window-log>] [--indexed-gzip] [--report=<file>] [--cache=<directory>] [--cache-size=<megabytes>] [--previous-zip=<file> [--previous-zip-manifest=<file>]]";
+
+	PackagerOptions() {
+		timestamp = parseSourceDateEpoch(System.getenv("SOURCE_DATE_EPOCH"));
+	}
+
+	/**
+	 * Parses the time of a reproducible build as given by the environment,
+	 * see <a href="https://reproducible-builds.org/specs/source-date-epoch/">SOURCE_DATE_EPOCH</a>.
+	 *
+	 * @return the time in milliseconds, or -1 if the value is not set or invalid
+	 */
+	static long parseSourceDateEpoch(final String value) {
+		if (value == null)
+			return -1;
+		try {
+			final long millis = toMillis(Long.parseLong(value.trim()));
+			if (millis >= 0)
+				return millis;
+		} catch (NumberFormatException e) {
+			// reported below
+		}
+		System.err.println("Warning: ignoring invalid SOURCE_DATE_EPOCH: " + value);
+		return -1;
+	}
+
+	/**
+	 * Converts the seconds of a reproducible build to milliseconds.
+	 *
+	 * @return the milliseconds, or -1 if the seconds are negative or too large
+	 */
+	private static long toMillis(final long seconds) {
+		return seconds >= 0 && seconds <= Long.MAX_VALUE / 1000 ? 1000 * seconds : -1;
+	}
+
+	/**
+	 * Parses one option.
+	 *
+	 * @return whether the option is known
+	 * @throws IllegalArgumentException if the option's value is not a valid number
+	 */
+	boolean parse(final String arg) {
+		try {
+			return parseOption(arg);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid number in option: " + arg);
+		}
+	}
+
+	private boolean parseOption(final String arg) {
+		if (arg.equals("--jre"))
+			includeJRE = true;
+		else if (arg.startsWith("--platforms=")) {
+			platforms = arg.substring("--platforms=".length()).split(",");
+			if (platforms.length == 1 && "".equals(platforms[0]))
+				platforms = new String[0];
+		}
+		else if (arg.startsWith("-Dij.dir="))
+			System.setProperty("ij.dir", arg.substring("-Dij.dir=".length()));
+		else if (arg.startsWith("--prefix=")) {
+			prefix = arg.substring("--prefix=".length());
+			if (!prefix.endsWith("/"))
+				prefix += "/";
+		}
+		else if (arg.startsWith("--threads="))
+			threads = Integer.parseInt(arg.substring("--threads=".length()));
+		else if (arg.startsWith("--block-size=")) {
+			final int kilobytes = Integer.parseInt(arg.substring("--block-size=".length()));
+			blockSize = kilobytes > Integer.MAX_VALUE / 1024 ? Integer.MAX_VALUE : 1024 * kilobytes;
+		}
+		else if (arg.equals("--store-compressed"))
+			storeCompressed = true;
+		else if (arg.startsWith("--previous-manifest="))
+			previousManifest = arg.substring("--previous-manifest=".length());
+		else if (arg.startsWith("--manifest="))
+			manifest = arg.substring("--manifest=".length());
+		else if (arg.startsWith("--read-ahead="))
+			readAheadThreads = Integer.parseInt(arg.substring("--read-ahead=".length()));
+		else if (arg.startsWith("--read-ahead-memory="))
+			readAheadMemory = Long.parseLong(arg.substring("--read-ahead-memory=".length())) << 20;
+		else if (arg.startsWith("--map-threshold=")) {
+			mapThreshold = Long.parseLong(arg.substring("--map-threshold=".length())) << 20;
+			if (mapThreshold <= 0)
+				mapThreshold = Long.MAX_VALUE;
+		}
+		else if (arg.equals("--reproducible")) {
+			if (timestamp < 0)
+				timestamp = 315532800000l; // 1980-01-01, the earliest time a ZIP can hold
+		}
+		else if (arg.startsWith("--reproducible=")) {
+			timestamp = toMillis(Long.parseLong(arg.substring("--reproducible=".length())));
+			if (timestamp < 0)
+				throw new NumberFormatException();
+		}
+		else if (arg.startsWith("--zstd-level="))
+			zstdLevel = Integer.parseInt(arg.substring("--zstd-level=".length()));
+		else if (arg.startsWith("--zstd-long="))
+			zstdWindowLog = Integer.parseInt(arg.substring("--zstd-long=".length()));
+		else if (arg.equals("--indexed-gzip"))
+			indexedGzip = true;
+		else if (arg.startsWith("--report="))
+			report = arg.substring("--report=".length());
+		else if (arg.startsWith("--cache="))
+			cache = arg.substring("--cache=".length());
+		else if (arg.startsWith("--cache-size="))
+			cacheSize = Long.parseLong(arg.substring("--cache-size=".length())) << 20;
+		else if (arg.startsWith("--previous-zip="))
+			previousZip = arg.substring("--previous-zip=".length());
+		else if (arg.startsWith("--previous-zip-manifest="))
+			previousZipManifest = arg.substring("--previous-zip-manifest=".length());
+		else if (arg.startsWith("--batch="))
+			batch = arg.substring("--batch=".length());
+		else
+			return false;
+		return true;
+	}
+
+	PackagerOptions copy() {
+		try {
+			return (PackagerOptions) clone();
+		} catch (CloneNotSupportedException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Makes a packager writing all the given archives.
+	 *
+	 * @throws IllegalArgumentException if the format of an archive is not supported
+	 */
+	Packager createPackager(final String[] paths) {
+		if (cache != null)
+			entryCache = new CompressedEntryCache(new File(cache), cacheSize);
+		final Packager[] sinks = new Packager[paths.length];
+		// one thread unless --threads was given
+		final int threads = Math.max(1, this.threads);
+		for (int j = 0; j < paths.length; j++) {
+			sinks[j] = Packager.forFileName(paths[j], threads);
+			if (sinks[j] == null)
+				throw new IllegalArgumentException("Unsupported archive format: " + paths[j]);
+			sinks[j].setThreads(threads);
+			if (blockSize != -1)
+				sinks[j].setBlockSize(blockSize);
+			if (storeCompressed && sinks[j] instanceof ZipPackager)
+				((ZipPackager) sinks[j]).setStoreRule(StoreRules.DEFAULT);
+			if (entryCache != null && sinks[j] instanceof ZipPackager)
+				((ZipPackager) sinks[j]).setCache(entryCache);
+			if (sinks[j] instanceof TarZstPackager) {
+				if (zstdLevel > 0)
+					((TarZstPackager) sinks[j]).setLevel(zstdLevel);
+				((TarZstPackager) sinks[j]).setLongDistanceWindow(zstdWindowLog);
+			}
+			if (indexedGzip && sinks[j] instanceof TarGzPackager)
+				((TarGzPackager) sinks[j]).setIndexed(true);
+		}
+		// write several formats from a single scan
+		final Packager packager = sinks.length > 1 ? new FanOutPackager(sinks) : sinks[0];
+
+		if (prefix != null)
+			packager.setPrefix(prefix);
+		if (mapThreshold > 0)
+			packager.setMapThreshold(mapThreshold);
+		if (timestamp >= 0)
+			packager.setReproducible(timestamp);
+		if (readAheadThreads > 0)
+			packager.setReadAhead(readAheadThreads, readAheadMemory > 0 ? readAheadMemory : packager.readAheadMemory);
+		return packager;
+	}
+
+	/**
+	 * Scans the files and writes the archives.
+	 *
+	 * @param scanned the files of all platforms, or null to scan them now
+	 * @param executor the pool to compress on, or null
+	 */
+	void write(final Packager packager, final String[] paths, final Map<String, PackageEntry> scanned, final ExecutorService executor) throws Exception {
+		final BuildStatistics statistics = packager.getStatistics();
+		statistics.register(paths[0]);
+		PreviousArchive previous = null;
+		final FileOutputStream[] outs = new FileOutputStream[paths.length];
+		try {
+			if (previousZip != null) {
+				previous = new PreviousArchive(new File(previousZip), previousZipManifest == null ? null : Manifest.read(new File(previousZipManifest)));
+				for (final Packager sink : packager instanceof FanOutPackager ? ((FanOutPackager) packager).sinks : new Packager[] { packager })
+					if (sink instanceof ZipPackager)
+						((ZipPackager) sink).setPreviousArchive(previous);
+			}
+			if (scanned == null)
+				packager.initialize(includeJRE, platforms);
+			else
+				packager.initialize(scanned, includeJRE, platforms);
+			if (executor != null)
+				packager.setExecutor(executor);
+			if (previousManifest != null)
+				packager.setPreviousManifest(Manifest.read(new File(previousManifest)));
+			for (int j = 0; j < paths.length; j++) {
+				outs[j] = new FileOutputStream(paths[j]);
+				statistics.addOutput(new File(paths[j]), outs[j]);
+			}
+			if (packager instanceof FanOutPackager)
+				((FanOutPackager) packager).open(outs);
+			else
+				packager.open(outs[0]);
+			packager.addDefaultFiles();
+			final long start = statistics.startPhase(BuildStatistics.CLOSE);
+			packager.close();
+			statistics.endPhase(BuildStatistics.CLOSE, start);
+			if (manifest != null)
+				packager.getManifest().write(new File(manifest));
+			if (report != null)
+				statistics.writeJSON(new File(report));
+			if (entryCache != null)
+				entryCache.trim();
+		} finally {
+			statistics.unregister();
+			if (previous != null)
+				previous.close();
+			// the packager closes the outputs, unless it failed
+			for (final FileOutputStream out : outs)
+				if (out != null) try {
+					out.close();
+				} catch (IOException e) {
+					// ignore
+				}
+		}
+	}
+}
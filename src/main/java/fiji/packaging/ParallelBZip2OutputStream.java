@@ -0,0 +1,579 @@
+package fiji.packaging;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A bzip2 compressor encoding the blocks in parallel.
+ * <p>
+ * The initial run-length encoding and the checksums are computed while the
+ * data is written; every full block is then Burrows-Wheeler transformed,
+ * move-to-front and Huffman coded on a pool of worker threads. As bzip2 blocks
+ * are not byte-aligned, the encoded blocks are shifted into place when they
+ * are concatenated into the output stream.
+ * </p>
+ */
+public class ParallelBZip2OutputStream extends OutputStream {
+	protected final static int GROUP_SIZE = 50, MAX_CODE_LENGTH = 17, ITERATIONS = 4;
+	protected final static int[] CRC_TABLE = new int[256];
+	static {
+		for (int i = 0; i < 256; i++) {
+			int crc = i << 24;
+			for (int j = 0; j < 8; j++)
+				crc = (crc << 1) ^ (crc < 0 ? 0x04c11db7 : 0);
+			CRC_TABLE[i] = crc;
+		}
+	}
+
+	protected BitWriter out;
+	protected ExecutorService executor;
+	protected boolean sharedExecutor;
+	protected int maxPending;
+	protected Deque<Future<Block>> pending = new ArrayDeque<Future<Block>>();
+	protected int combinedCRC;
+	protected boolean closed;
+	protected BuildStatistics statistics;
+
+	protected byte[] block;
+	protected int blockLength, maxBlockLength, blockCRC = -1;
+	protected int runByte = -1, runLength;
+
+	public ParallelBZip2OutputStream(final OutputStream out, final int threads) throws IOException {
+		this(out, threads, 9);
+	}
+
+	public ParallelBZip2OutputStream(final OutputStream out, final int threads, final int blockSize100k) throws IOException {
+		this(out, threads, blockSize100k, null);
+	}
+
+	/**
+	 * @param executor the pool to encode on, shared with other streams, or null to start a pool of the given size
+	 */
+	public ParallelBZip2OutputStream(final OutputStream out, final int threads, final int blockSize100k, final ExecutorService executor) throws IOException {
+		if (blockSize100k < 1 || blockSize100k > 9)
+			throw new IllegalArgumentException("Invalid block size: " + blockSize100k);
+		this.out = new BitWriter(out);
+		final int count = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+		sharedExecutor = executor != null;
+		this.executor = sharedExecutor ? executor : Executors.newFixedThreadPool(count, new DaemonThreadFactory("bzip2-encode"));
+		maxPending = 2 * count;
+		maxBlockLength = 100000 * blockSize100k - 19;
+		block = new byte[maxBlockLength + 5];
+		out.write(new byte[] { 'B', 'Z', 'h', (byte) ('0' + blockSize100k) });
+	}
+
+	/**
+	 * Sets the statistics to add the time spent on the pool to.
+	 */
+	public void setStatistics(final BuildStatistics statistics) {
+		this.statistics = statistics;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (closed)
+			throw new IOException("Stream closed");
+		for (int i = off; i < off + len; i++) {
+			final int value = b[i] & 0xff;
+			if (value == runByte && runLength < 255)
+				runLength++;
+			else {
+				writeRun();
+				runByte = value;
+				runLength = 1;
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed)
+			return;
+		closed = true;
+		try {
+			writeRun();
+			if (blockLength > 0)
+				submit();
+			while (!pending.isEmpty())
+				writeNextPending();
+			out.writeBits(24, 0x177245);
+			out.writeBits(24, 0x385090);
+			out.writeBits(32, combinedCRC);
+			out.close();
+		} finally {
+			if (sharedExecutor)
+				for (final Future<Block> future : pending)
+					future.cancel(true);
+			else
+				executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Adds the current run to the block (initial run-length encoding).
+	 */
+	protected void writeRun() throws IOException {
+		if (runLength == 0)
+			return;
+		final byte value = (byte) runByte;
+		for (int i = 0; i < runLength; i++)
+			blockCRC = (blockCRC << 8) ^ CRC_TABLE[(blockCRC >>> 24) ^ runByte];
+		if (runLength < 4)
+			for (int i = 0; i < runLength; i++)
+				block[blockLength++] = value;
+		else {
+			block[blockLength++] = value;
+			block[blockLength++] = value;
+			block[blockLength++] = value;
+			block[blockLength++] = value;
+			block[blockLength++] = (byte) (runLength - 4);
+		}
+		runByte = -1;
+		runLength = 0;
+		if (blockLength >= maxBlockLength)
+			submit();
+	}
+
+	protected void submit() throws IOException {
+		while (pending.size() >= maxPending)
+			writeNextPending();
+		pending.add(executor.submit(new Block(block, blockLength, ~blockCRC)));
+		block = new byte[block.length];
+		blockLength = 0;
+		blockCRC = -1;
+	}
+
+	protected void writeNextPending() throws IOException {
+		final Block done;
+		try {
+			done = pending.removeFirst().get();
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while compressing");
+		} catch (ExecutionException e) {
+			throw new IOException("Could not compress: " + e.getCause(), e.getCause());
+		}
+		if (statistics != null)
+			statistics.addPoolCompressTime(done.nanos);
+		combinedCRC = ((combinedCRC << 1) | (combinedCRC >>> 31)) ^ done.crc;
+		out.append(done.output);
+	}
+
+	/**
+	 * Encodes one block, independently of all other blocks.
+	 */
+	protected static class Block implements Callable<Block> {
+		protected final byte[] data;
+		protected final int length, crc;
+		protected BitWriter output;
+		protected long nanos;
+
+		public Block(final byte[] data, final int length, final int crc) {
+			this.data = data;
+			this.length = length;
+			this.crc = crc;
+		}
+
+		@Override
+		public Block call() throws IOException {
+			final long start = System.nanoTime();
+			output = new BitWriter(null);
+			output.writeBits(24, 0x314159);
+			output.writeBits(24, 0x265359);
+			output.writeBits(32, crc);
+			output.writeBits(1, 0); // not randomised
+
+			final int[] order = sortRotations(data, length);
+			int origPtr = -1;
+			final byte[] last = new byte[length];
+			for (int i = 0; i < length; i++) {
+				final int index = order[i];
+				if (index == 0)
+					origPtr = i;
+				last[i] = data[index == 0 ? length - 1 : index - 1];
+			}
+			output.writeBits(24, origPtr);
+
+			// symbol map
+			final boolean[] inUse = new boolean[256];
+			for (int i = 0; i < length; i++)
+				inUse[data[i] & 0xff] = true;
+			int inUse16 = 0;
+			for (int i = 0; i < 16; i++)
+				for (int j = 0; j < 16; j++)
+					if (inUse[i * 16 + j])
+						inUse16 |= 1 << (15 - i);
+			output.writeBits(16, inUse16);
+			final int[] unseqToSeq = new int[256];
+			int inUseCount = 0;
+			for (int i = 0; i < 16; i++) {
+				if ((inUse16 & (1 << (15 - i))) == 0)
+					continue;
+				int bits = 0;
+				for (int j = 0; j < 16; j++)
+					if (inUse[i * 16 + j]) {
+						bits |= 1 << (15 - j);
+						unseqToSeq[i * 16 + j] = inUseCount++;
+					}
+				output.writeBits(16, bits);
+			}
+
+			final int alphaSize = inUseCount + 2;
+			final int[] frequencies = new int[alphaSize];
+			final short[] symbols = new short[length + 1];
+			final int symbolCount = moveToFront(last, unseqToSeq, inUseCount, symbols, frequencies);
+			writeHuffmanCoded(output, symbols, symbolCount, frequencies, alphaSize);
+
+			output.flush();
+			nanos = System.nanoTime() - start;
+			return this;
+		}
+	}
+
+	/**
+	 * Sorts the cyclic rotations of the block by prefix doubling.
+	 * <p>
+	 * Each sort key packs the rank of a rotation's first half, the rank of its
+	 * second half and the rotation's index into a single long, which is
+	 * possible because the blocks are shorter than 2^20 bytes. The rank of a
+	 * rotation is the start of its group of (so far) equal rotations in the
+	 * sorted order; after the first pass, only groups with more than one
+	 * member need to be sorted again.
+	 * </p>
+	 */
+	protected static int[] sortRotations(final byte[] data, final int length) {
+		final int[] rank = new int[length];
+		final int[] order = new int[length];
+		final long[] keys = new long[length];
+		for (int i = 0; i < length; i++)
+			keys[i] = ((long) (data[i] & 0xff) << 40) | ((long) (data[(i + 1) % length] & 0xff) << 20) | i;
+		boolean unique = sortGroup(keys, 0, length, order, rank);
+
+		for (int k = 2; !unique && k < length; k <<= 1) {
+			// compute all keys before any rank changes
+			for (int start = 0; start < length; ) {
+				final int end = groupEnd(order, rank, start, length);
+				if (end - start > 1)
+					for (int i = start; i < end; i++) {
+						final int index = order[i];
+						keys[i] = ((long) rank[(index + k) % length] << 20) | index;
+					}
+				start = end;
+			}
+			unique = true;
+			for (int start = 0; start < length; ) {
+				final int end = groupEnd(order, rank, start, length);
+				if (end - start > 1 && !sortGroup(keys, start, end, order, rank))
+					unique = false;
+				start = end;
+			}
+		}
+		return order;
+	}
+
+	private static int groupEnd(final int[] order, final int[] rank, final int start, final int length) {
+		final int group = rank[order[start]];
+		int end = start + 1;
+		while (end < length && rank[order[end]] == group)
+			end++;
+		return end;
+	}
+
+	/**
+	 * Sorts a range of keys, and updates the order and the ranks accordingly.
+	 *
+	 * @return whether all rotations in the range are now distinguished
+	 */
+	private static boolean sortGroup(final long[] keys, final int start, final int end, final int[] order, final int[] rank) {
+		Arrays.sort(keys, start, end);
+		boolean unique = true;
+		int group = start;
+		long previous = -1;
+		for (int i = start; i < end; i++) {
+			final long key = keys[i] >>> 20;
+			if (key != previous) {
+				previous = key;
+				group = i;
+			}
+			else
+				unique = false;
+			order[i] = (int) (keys[i] & 0xfffff);
+			keys[i] = group;
+		}
+		for (int i = start; i < end; i++)
+			rank[order[i]] = (int) keys[i];
+		return unique;
+	}
+
+	/**
+	 * Performs the move-to-front transform and the run-length encoding of zeros.
+	 *
+	 * @return the number of symbols, including the end-of-block symbol
+	 */
+	protected static int moveToFront(final byte[] last, final int[] unseqToSeq, final int inUseCount, final short[] symbols, final int[] frequencies) {
+		final byte[] list = new byte[inUseCount];
+		for (int i = 0; i < inUseCount; i++)
+			list[i] = (byte) i;
+		int count = 0, zeros = 0;
+		for (int i = 0; i < last.length; i++) {
+			final byte value = (byte) unseqToSeq[last[i] & 0xff];
+			if (list[0] == value) {
+				zeros++;
+				continue;
+			}
+			if (zeros > 0) {
+				count = writeZeros(zeros, symbols, count, frequencies);
+				zeros = 0;
+			}
+			int j = 1;
+			byte previous = list[0];
+			while (list[j] != value) {
+				final byte swap = list[j];
+				list[j] = previous;
+				previous = swap;
+				j++;
+			}
+			list[j] = previous;
+			list[0] = value;
+			symbols[count++] = (short) (j + 1);
+			frequencies[j + 1]++;
+		}
+		if (zeros > 0)
+			count = writeZeros(zeros, symbols, count, frequencies);
+		symbols[count++] = (short) (inUseCount + 1);
+		frequencies[inUseCount + 1]++;
+		return count;
+	}
+
+	private static int writeZeros(int zeros, final short[] symbols, int count, final int[] frequencies) {
+		zeros--;
+		for (;;) {
+			final int symbol = zeros & 1; // RUNA or RUNB
+			symbols[count++] = (short) symbol;
+			frequencies[symbol]++;
+			if (zeros < 2)
+				return count;
+			zeros = (zeros - 2) >> 1;
+		}
+	}
+
+	protected static void writeHuffmanCoded(final BitWriter output, final short[] symbols, final int symbolCount, final int[] frequencies, final int alphaSize) throws IOException {
+		final int groupCount = symbolCount < 200 ? 2 : symbolCount < 600 ? 3 : symbolCount < 1200 ? 4 : symbolCount < 2400 ? 5 : 6;
+		final int[][] lengths = new int[groupCount][alphaSize];
+
+		// initial tables: split the alphabet into ranges of roughly equal frequency
+		int remaining = symbolCount, start = 0;
+		for (int part = groupCount; part > 0; part--) {
+			final int target = remaining / part;
+			int end = start - 1, sum = 0;
+			while (sum < target && end < alphaSize - 1)
+				sum += frequencies[++end];
+			if (end > start && part != groupCount && part != 1 && ((groupCount - part) % 2 == 1))
+				sum -= frequencies[end--];
+			for (int v = 0; v < alphaSize; v++)
+				lengths[part - 1][v] = v >= start && v <= end ? 0 : 15;
+			start = end + 1;
+			remaining -= sum;
+		}
+
+		// refine the tables by assigning each group of 50 symbols to its cheapest table
+		final int selectorCount = (symbolCount + GROUP_SIZE - 1) / GROUP_SIZE;
+		final byte[] selectors = new byte[selectorCount];
+		final int[][] groupFrequencies = new int[groupCount][alphaSize];
+		for (int iteration = 0; iteration < ITERATIONS; iteration++) {
+			for (int t = 0; t < groupCount; t++)
+				Arrays.fill(groupFrequencies[t], 0);
+			for (int s = 0; s < selectorCount; s++) {
+				final int from = s * GROUP_SIZE, to = Math.min(from + GROUP_SIZE, symbolCount);
+				int best = 0, bestCost = Integer.MAX_VALUE;
+				for (int t = 0; t < groupCount; t++) {
+					int cost = 0;
+					for (int i = from; i < to; i++)
+						cost += lengths[t][symbols[i]];
+					if (cost < bestCost) {
+						bestCost = cost;
+						best = t;
+					}
+				}
+				selectors[s] = (byte) best;
+				for (int i = from; i < to; i++)
+					groupFrequencies[best][symbols[i]]++;
+			}
+			for (int t = 0; t < groupCount; t++)
+				makeCodeLengths(lengths[t], groupFrequencies[t], alphaSize);
+		}
+
+		final int[][] codes = new int[groupCount][alphaSize];
+		for (int t = 0; t < groupCount; t++) {
+			int code = 0;
+			for (int n = 1; n <= MAX_CODE_LENGTH; n++) {
+				for (int v = 0; v < alphaSize; v++)
+					if (lengths[t][v] == n)
+						codes[t][v] = code++;
+				code <<= 1;
+			}
+		}
+
+		output.writeBits(3, groupCount);
+		output.writeBits(15, selectorCount);
+		final byte[] list = new byte[groupCount];
+		for (int t = 0; t < groupCount; t++)
+			list[t] = (byte) t;
+		for (int s = 0; s < selectorCount; s++) {
+			final byte selector = selectors[s];
+			int j = 0;
+			while (list[j] != selector)
+				j++;
+			System.arraycopy(list, 0, list, 1, j);
+			list[0] = selector;
+			for (int i = 0; i < j; i++)
+				output.writeBits(1, 1);
+			output.writeBits(1, 0);
+		}
+
+		for (int t = 0; t < groupCount; t++) {
+			int current = lengths[t][0];
+			output.writeBits(5, current);
+			for (int v = 0; v < alphaSize; v++) {
+				for (; current < lengths[t][v]; current++)
+					output.writeBits(2, 2);
+				for (; current > lengths[t][v]; current--)
+					output.writeBits(2, 3);
+				output.writeBits(1, 0);
+			}
+		}
+
+		for (int s = 0; s < selectorCount; s++) {
+			final int[] length = lengths[selectors[s]], code = codes[selectors[s]];
+			final int from = s * GROUP_SIZE, to = Math.min(from + GROUP_SIZE, symbolCount);
+			for (int i = from; i < to; i++)
+				output.writeBits(length[symbols[i]], code[symbols[i]]);
+		}
+	}
+
+	/**
+	 * Computes Huffman code lengths, flattening the frequencies until no code
+	 * is longer than {@link #MAX_CODE_LENGTH}.
+	 */
+	protected static void makeCodeLengths(final int[] lengths, final int[] frequencies, final int alphaSize) {
+		final int[] weight = new int[2 * alphaSize], parent = new int[2 * alphaSize];
+		final boolean[] merged = new boolean[2 * alphaSize];
+		for (int v = 0; v < alphaSize; v++)
+			weight[v] = Math.max(frequencies[v], 1);
+		for (;;) {
+			Arrays.fill(merged, false);
+			int nodes = alphaSize;
+			for (int remaining = alphaSize; remaining > 1; remaining--) {
+				int first = -1, second = -1;
+				for (int i = 0; i < nodes; i++) {
+					if (merged[i])
+						continue;
+					if (first < 0 || weight[i] < weight[first]) {
+						second = first;
+						first = i;
+					}
+					else if (second < 0 || weight[i] < weight[second])
+						second = i;
+				}
+				merged[first] = merged[second] = true;
+				weight[nodes] = weight[first] + weight[second];
+				parent[first] = parent[second] = nodes;
+				nodes++;
+			}
+
+			boolean tooLong = false;
+			final int root = nodes - 1;
+			for (int v = 0; v < alphaSize; v++) {
+				int depth = 0;
+				for (int node = v; node != root; node = parent[node])
+					depth++;
+				lengths[v] = depth;
+				if (depth > MAX_CODE_LENGTH)
+					tooLong = true;
+			}
+			if (!tooLong)
+				return;
+			for (int v = 0; v < alphaSize; v++)
+				weight[v] = 1 + weight[v] / 2;
+		}
+	}
+
+	/**
+	 * Collects bits MSB-first, either into memory or into an output stream.
+	 */
+	protected static class BitWriter {
+		protected final OutputStream out;
+		protected byte[] buffer = new byte[65536];
+		protected int length;
+		protected long bits;
+		protected int bitCount;
+		protected long totalBits;
+
+		public BitWriter(final OutputStream out) {
+			this.out = out;
+		}
+
+		public void writeBits(final int count, final int value) throws IOException {
+			bits = (bits << count) | (value & ((1l << count) - 1));
+			bitCount += count;
+			totalBits += count;
+			while (bitCount >= 8) {
+				bitCount -= 8;
+				if (length == buffer.length) {
+					if (out != null) {
+						out.write(buffer, 0, length);
+						length = 0;
+					}
+					else
+						buffer = Arrays.copyOf(buffer, 2 * buffer.length);
+				}
+				buffer[length++] = (byte) (bits >>> bitCount);
+			}
+		}
+
+		/**
+		 * Appends the bits of an in-memory writer that has been {@link #flush()}ed.
+		 */
+		public void append(final BitWriter other) throws IOException {
+			final int fullBytes = (int) (other.totalBits >>> 3);
+			for (int i = 0; i < fullBytes; i++)
+				writeBits(8, other.buffer[i]);
+			final int rest = (int) (other.totalBits & 7);
+			if (rest > 0)
+				writeBits(rest, (other.buffer[fullBytes] & 0xff) >> (8 - rest));
+		}
+
+		/**
+		 * Pads the last byte with zeros; the bit count stays unpadded.
+		 */
+		public void flush() throws IOException {
+			if (bitCount > 0) {
+				final long total = totalBits;
+				writeBits(8 - bitCount, 0);
+				totalBits = total;
+			}
+			if (out != null) {
+				out.write(buffer, 0, length);
+				length = 0;
+				out.flush();
+			}
+		}
+
+		public void close() throws IOException {
+			flush();
+			out.close();
+		}
+	}
+}
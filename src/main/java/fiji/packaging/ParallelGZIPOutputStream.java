@@ -0,0 +1,201 @@
+package fiji.packaging;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * A multi-threaded replacement for {@link java.util.zip.GZIPOutputStream}.
+ * <p>
+ * Like <i>pigz</i>, this class splits the uncompressed data into blocks and
+ * deflates them in parallel, using the last 32 kB of the previous block as
+ * preset dictionary. All but the last block end in a sync flush, so that the
+ * compressed blocks can simply be concatenated into one standard gzip member.
+ * </p>
+ */
+public class ParallelGZIPOutputStream extends OutputStream {
+	protected final static int DICTIONARY_SIZE = 32768;
+
+	protected OutputStream out;
+	protected ExecutorService executor;
+	protected boolean sharedExecutor;
+	protected int level = Deflater.DEFAULT_COMPRESSION, maxPending;
+	protected Deque<Future<Block>> pending = new ArrayDeque<Future<Block>>();
+	protected CRC32 crc = new CRC32();
+	protected long totalIn;
+
+	protected byte[] previous, block;
+	protected int previousLength, blockLength;
+	protected boolean closed;
+	protected BuildStatistics statistics;
+
+	public ParallelGZIPOutputStream(final OutputStream out, final int threads, final int blockSize) throws IOException {
+		this(out, threads, blockSize, null);
+	}
+
+	/**
+	 * @param executor the pool to deflate on, shared with other streams, or null to start a pool of the given size
+	 */
+	public ParallelGZIPOutputStream(final OutputStream out, final int threads, final int blockSize, final ExecutorService executor) throws IOException {
+		if (blockSize < DICTIONARY_SIZE)
+			throw new IllegalArgumentException("Block size too small: " + blockSize);
+		this.out = out;
+		final int count = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+		sharedExecutor = executor != null;
+		this.executor = sharedExecutor ? executor : Executors.newFixedThreadPool(count, new DaemonThreadFactory("gzip-deflate"));
+		maxPending = 2 * count;
+		block = new byte[blockSize];
+		// magic, method, no flags, no mtime, no extra flags, unknown OS
+		out.write(new byte[] { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff });
+	}
+
+	/**
+	 * Sets the statistics to add the time spent on the pool to.
+	 */
+	public void setStatistics(final BuildStatistics statistics) {
+		this.statistics = statistics;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (closed)
+			throw new IOException("Stream closed");
+		crc.update(b, off, len);
+		totalIn += len;
+		while (len > 0) {
+			if (blockLength == block.length)
+				submit(false);
+			final int count = Math.min(len, block.length - blockLength);
+			System.arraycopy(b, off, block, blockLength, count);
+			blockLength += count;
+			off += count;
+			len -= count;
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed)
+			return;
+		closed = true;
+		try {
+			submit(true);
+			while (!pending.isEmpty())
+				writeNextPending();
+			final byte[] trailer = new byte[8];
+			putInt(trailer, 0, (int) crc.getValue());
+			putInt(trailer, 4, (int) totalIn);
+			out.write(trailer);
+			out.close();
+		} finally {
+			if (sharedExecutor)
+				for (final Future<Block> future : pending)
+					future.cancel(true);
+			else
+				executor.shutdownNow();
+		}
+	}
+
+	protected void submit(final boolean last) throws IOException {
+		while (pending.size() >= maxPending)
+			writeNextPending();
+		final Block task = new Block(block, blockLength, previous, previousLength, last);
+		pending.add(executor.submit(task));
+		previous = block;
+		previousLength = blockLength;
+		block = new byte[block.length];
+		blockLength = 0;
+	}
+
+	protected void writeNextPending() throws IOException {
+		final Block done;
+		try {
+			done = pending.removeFirst().get();
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while deflating");
+		} catch (ExecutionException e) {
+			throw new IOException("Could not deflate: " + e.getCause(), e.getCause());
+		}
+		if (statistics != null)
+			statistics.addPoolCompressTime(done.nanos);
+		out.write(done.output, 0, done.outputLength);
+	}
+
+	protected static void putInt(final byte[] buffer, final int offset, final int value) {
+		buffer[offset] = (byte) value;
+		buffer[offset + 1] = (byte) (value >> 8);
+		buffer[offset + 2] = (byte) (value >> 16);
+		buffer[offset + 3] = (byte) (value >> 24);
+	}
+
+	/**
+	 * One block of raw deflate data.
+	 */
+	protected class Block implements Callable<Block> {
+		protected final byte[] input, dictionary;
+		protected final int inputLength, dictionaryLength;
+		protected final boolean last;
+		protected byte[] output;
+		protected int outputLength;
+		protected long nanos;
+
+		public Block(final byte[] input, final int inputLength, final byte[] dictionary, final int dictionaryLength, final boolean last) {
+			this.input = input;
+			this.inputLength = inputLength;
+			this.dictionary = dictionary;
+			this.dictionaryLength = dictionaryLength;
+			this.last = last;
+		}
+
+		@Override
+		public Block call() {
+			final long start = System.nanoTime();
+			final Deflater deflater = new Deflater(level, true);
+			try {
+				if (dictionary != null) {
+					final int length = Math.min(dictionaryLength, DICTIONARY_SIZE);
+					deflater.setDictionary(dictionary, dictionaryLength - length, length);
+				}
+				deflater.setInput(input, 0, inputLength);
+				if (last)
+					deflater.finish();
+				output = new byte[inputLength + inputLength / 16 + 64];
+				for (;;) {
+					if (outputLength == output.length) {
+						final byte[] grown = new byte[2 * output.length];
+						System.arraycopy(output, 0, grown, 0, outputLength);
+						output = grown;
+					}
+					final int available = output.length - outputLength;
+					final int count = deflater.deflate(output, outputLength, available,
+						last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+					outputLength += count;
+					if (last ? deflater.finished() : count < available)
+						break;
+				}
+			} finally {
+				deflater.end();
+			}
+			nanos = System.nanoTime() - start;
+			return this;
+		}
+	}
+}
@@ -0,0 +1,447 @@
+package fiji.packaging;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+/**
+ * A {@link ZipPackager} deflating the entries on a pool of worker threads.
+ * <p>
+ * Every entry is collected in memory and handed to the pool when it is
+ * closed; the compressed entries are written in the original order, followed
+ * by the central directory. Deflated entries are laid out like the
+ * {@link ZipPackager}'s, with a data descriptor, so that a reproducible
+ * archive does not depend on the number of threads.
+ * </p>
+ * <p>
+ * Memory-mapped files are not copied to the heap: the mapping itself is
+ * handed to the deflater, directly on Java 11 and later, in small chunks
+ * otherwise.
+ * </p>
+ * <p>
+ * Entries too large to be collected are deflated on the writer's thread
+ * instead, streaming to the output and followed by a data descriptor.
+ * </p>
+ */
+public class ParallelZipPackager extends ZipPackager {
+	protected final static int CHUNK_SIZE = 65536;
+
+	/**
+	 * Entries larger than this are streamed rather than collected.
+	 */
+	protected final static long STREAMING_THRESHOLD = MAP_WINDOW;
+
+	/**
+	 * Copied entries from this size on are memory-mapped rather than read.
+	 */
+	protected final static long COPY_MAP_THRESHOLD = 1 << 20;
+
+	protected ExecutorService executor;
+	protected Deque<Future<Entry>> pending = new ArrayDeque<Future<Entry>>();
+	protected long pendingBytes, maxPendingBytes = 256l << 20;
+
+	protected Entry current;
+	/** The entry last handed to the pool, to attach its Flight Recorder event to. */
+	protected Entry queued;
+	protected byte[] data;
+	protected int dataLength, expectedLength;
+	protected ByteBuffer mapped;
+	protected Deflater streaming;
+	protected CRC32 streamingCrc;
+	protected byte[] deflated;
+
+	/**
+	 * Limits the amount of uncompressed data waiting to be written.
+	 */
+	public void setMaxPendingBytes(final long maxPendingBytes) {
+		this.maxPendingBytes = maxPendingBytes;
+	}
+
+	@Override
+	public void open(OutputStream out) {
+		writer = new ZipWriter(out);
+		final int count = threads > 1 ? threads : Runtime.getRuntime().availableProcessors();
+		executor = sharedExecutor != null ? sharedExecutor : Executors.newFixedThreadPool(count, new DaemonThreadFactory("zip-deflate"));
+	}
+
+	@Override
+	protected ZipWriter.Entry prepareStoredEntry(String name, PackageEntry entry, File file) {
+		// the store rule is applied to the collected data instead
+		return null;
+	}
+
+	/**
+	 * Offers a previous entry only if the store rule would deflate the file,
+	 * too, as it would otherwise be stored when it is collected.
+	 */
+	@Override
+	protected PreviousArchive.Entry getPreviousEntry(String name, PackageEntry entry, File file) throws IOException {
+		final PreviousArchive.Entry previous = super.getPreviousEntry(name, entry, file);
+		if (previous == null || storeRule == null)
+			return previous;
+		final InputStream in = new FileInputStream(file);
+		try {
+			final int length = readHead(in);
+			return storeRule.shouldStore(name, head, length) ? null : previous;
+		} finally {
+			in.close();
+		}
+	}
+
+	@Override
+	public void putNextEntry(String name, PackageEntry entry) throws IOException {
+		current = new Entry(name, entry.isExecutable(), getDosTime());
+		queued = null;
+		if (cache != null && cache.accepts(entry))
+			current.checksum = entry.checksum;
+		data = null;
+		dataLength = 0;
+		mapped = null;
+		if (entry.size > STREAMING_THRESHOLD)
+			startStreaming();
+		else
+			expectedLength = (int)Math.max(entry.size, 0);
+	}
+
+	/**
+	 * Writes the current entry's local header right away, so that the data can be deflated as it comes.
+	 */
+	protected void startStreaming() throws IOException {
+		while (!pending.isEmpty())
+			writeNextPending();
+		current.flags |= 0x08; // data descriptor
+		writer.writeLocalHeader(current);
+		streaming = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		streamingCrc = new CRC32();
+		if (deflated == null)
+			deflated = new byte[CHUNK_SIZE];
+	}
+
+	@Override
+	public void write(ByteBuffer buffer) throws IOException {
+		if (streaming != null) {
+			if (SET_INPUT == null || buffer.hasArray()) {
+				writeCopy(buffer);
+				return;
+			}
+			final int count = buffer.remaining();
+			streamingCrc.update(buffer.duplicate());
+			setInput(streaming, buffer);
+			while (!streaming.needsInput())
+				writeDeflated();
+			current.size += count;
+		}
+		else if (buffer.isDirect() && data == null && mapped == null) {
+			// keep the mapping instead of copying it
+			mapped = buffer.slice();
+			buffer.position(buffer.limit());
+		}
+		else
+			writeCopy(buffer);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (streaming != null) {
+			streamingCrc.update(b, off, len);
+			streaming.setInput(b, off, len);
+			while (!streaming.needsInput())
+				writeDeflated();
+			current.size += len;
+			return;
+		}
+		if (mapped != null) {
+			// more data after a mapped region: fall back to collecting on the heap
+			final ByteBuffer region = mapped;
+			final int count = region.remaining();
+			mapped = null;
+			ensureCapacity(count);
+			region.get(data, dataLength, count);
+			dataLength += count;
+		}
+		ensureCapacity(len);
+		System.arraycopy(b, off, data, dataLength, len);
+		dataLength += len;
+	}
+
+	protected void ensureCapacity(final int len) {
+		if (data == null)
+			data = new byte[Math.max(expectedLength, len)];
+		else if (dataLength + len > data.length) {
+			byte[] grown = new byte[Math.max(dataLength + len, 2 * data.length)];
+			System.arraycopy(data, 0, grown, 0, dataLength);
+			data = grown;
+		}
+	}
+
+	protected void writeDeflated() throws IOException {
+		final long start = System.nanoTime();
+		final int count = streaming.deflate(deflated);
+		final long deflated = System.nanoTime();
+		writer.write(this.deflated, 0, count);
+		statistics.addCompressTime(deflated - start);
+		statistics.addOutputTime(System.nanoTime() - deflated);
+		current.compressedSize += count;
+	}
+
+	@Override
+	public void closeEntry() throws IOException {
+		if (streaming != null) {
+			finishStreaming();
+			return;
+		}
+		final Entry entry = current;
+		final ByteBuffer input = mapped != null ? mapped : ByteBuffer.wrap(data == null ? new byte[0] : data, 0, dataLength);
+		final int length = input.remaining();
+		final StoreRule rule = storeRule;
+		final CompressedEntryCache cache = this.cache;
+		current = null;
+		data = null;
+		mapped = null;
+		queued = entry;
+		pending.add(executor.submit(new Callable<Entry>() {
+			@Override
+			public Entry call() {
+				final long start = System.nanoTime();
+				if (rule != null && rule.shouldStore(entry.fileName, getHead(input), Math.min(length, StoreRules.HEAD_SIZE)))
+					entry.store(input);
+				else
+					entry.deflate(input);
+				entry.compressNanos = System.nanoTime() - start;
+				if (entry.checksum != null && entry.method == ZipEntry.DEFLATED)
+					cache.put(entry.checksum, CompressedEntryCache.DEFLATE, Deflater.DEFAULT_COMPRESSION, entry.crc, entry.size, entry.compressed);
+				return entry;
+			}
+		}));
+		pendingBytes += length;
+		while (pendingBytes > maxPendingBytes && !pending.isEmpty())
+			writeNextPending();
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			while (!pending.isEmpty())
+				writeNextPending();
+			writer.close();
+		} finally {
+			if (executor == sharedExecutor)
+				for (final Future<Entry> future : pending)
+					future.cancel(true);
+			else
+				executor.shutdownNow();
+		}
+	}
+
+	protected void finishStreaming() throws IOException {
+		final Entry entry = current;
+		try {
+			streaming.finish();
+			while (!streaming.finished())
+				writeDeflated();
+		} finally {
+			streaming.end();
+			streaming = null;
+		}
+		entry.crc = streamingCrc.getValue();
+		compressedSize = entry.compressedSize;
+		current = null;
+		writer.writeDataDescriptor(entry);
+	}
+
+	/**
+	 * Queues a copied entry behind the entries being deflated, mapping the compressed data.
+	 * <p>
+	 * Copies of files too large to be collected are written right away, all
+	 * others in order with the deflated entries.
+	 * </p>
+	 */
+	@Override
+	protected void writeCopiedEntry(final ZipWriter.Entry copied, final FileChannel source, final long position) throws IOException {
+		// the compressed size is known already
+		queued = null;
+		if (copied.size > STREAMING_THRESHOLD) {
+			while (!pending.isEmpty())
+				writeNextPending();
+			super.writeCopiedEntry(copied, source, position);
+			return;
+		}
+		final Entry entry = new Entry(copied.fileName, copied.executable, copied.dosTime);
+		entry.method = copied.method;
+		entry.crc = copied.crc;
+		entry.size = copied.size;
+		entry.compressedSize = copied.compressedSize;
+		if (copied.compressedSize < COPY_MAP_THRESHOLD) {
+			// thousands of small mappings would only be released by the garbage collector
+			entry.compressed = ByteBuffer.allocate((int) copied.compressedSize);
+			while (entry.compressed.hasRemaining())
+				if (source.read(entry.compressed, position + entry.compressed.position()) < 0)
+					throw new EOFException("Short file");
+			entry.compressed.flip();
+		}
+		else
+			entry.compressed = source.map(FileChannel.MapMode.READ_ONLY, position, copied.compressedSize);
+		final FutureTask<Entry> done = new FutureTask<Entry>(new Callable<Entry>() {
+			@Override
+			public Entry call() {
+				return entry;
+			}
+		});
+		done.run();
+		pending.add(done);
+		pendingBytes += entry.size;
+		while (pendingBytes > maxPendingBytes && !pending.isEmpty())
+			writeNextPending();
+	}
+
+	protected void writeNextPending() throws IOException {
+		final Entry entry;
+		try {
+			entry = pending.removeFirst().get();
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while deflating");
+		} catch (ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			throw new IOException("Could not deflate: " + cause, cause);
+		}
+		pendingBytes -= entry.size;
+		statistics.addPoolCompressTime(entry.compressNanos);
+
+		final long start = System.nanoTime();
+		final boolean deflated = entry.method == ZipEntry.DEFLATED;
+		if (deflated)
+			entry.flags |= 0x08; // data descriptor, like the ZipPackager's
+		writer.writeLocalHeader(entry);
+		writer.write(entry.compressed);
+		if (deflated)
+			writer.writeDataDescriptor(entry);
+		final long output = System.nanoTime() - start;
+		statistics.addOutputTime(output);
+		entry.compressed = null;
+		if (entry.event != null)
+			PackagerEvents.commitEntry(entry.event, entry.eventPath, entry.eventSize, entry.compressedSize, entry.eventReadNanos,
+				entry.eventCompressNanos + entry.compressNanos, entry.eventOutputNanos + output);
+	}
+
+	/**
+	 * Holds on to the event of an entry deflated on the pool until it is written.
+	 */
+	@Override
+	protected void commitEntryEvent(final String path, final long size, final long readNanos) throws IOException {
+		if (entryEvent == null || queued == null) {
+			super.commitEntryEvent(path, size, readNanos);
+			return;
+		}
+		queued.event = entryEvent;
+		queued.eventPath = path;
+		queued.eventSize = size;
+		queued.eventReadNanos = statistics.getReadNanos() - eventReadNanos + readNanos;
+		queued.eventCompressNanos = statistics.getCompressNanos() - eventCompressNanos;
+		queued.eventOutputNanos = statistics.getOutputNanos() - eventOutputNanos;
+		entryEvent = null;
+		queued = null;
+	}
+
+	/**
+	 * Returns the first bytes of the input, for the {@link StoreRule}.
+	 */
+	protected static byte[] getHead(final ByteBuffer input) {
+		if (input.hasArray() && input.arrayOffset() == 0 && input.position() == 0)
+			return input.array();
+		final byte[] head = new byte[Math.min(input.remaining(), StoreRules.HEAD_SIZE)];
+		input.duplicate().get(head);
+		return head;
+	}
+
+	/**
+	 * An entry with its compressed data, from collection to the output.
+	 */
+	protected static class Entry extends ZipWriter.Entry {
+		protected ByteBuffer compressed;
+		/** The updater checksum to cache the deflated data under, or null. */
+		protected String checksum;
+		/** The time spent compressing on the pool. */
+		protected long compressNanos;
+		/** The Flight Recorder event to commit once the entry is written, or null, and its values so far. */
+		protected Object event;
+		protected String eventPath;
+		protected long eventSize, eventReadNanos, eventCompressNanos, eventOutputNanos;
+
+		public Entry(final String name, final boolean executable, final int dosTime) {
+			super(name, executable, dosTime);
+		}
+
+		public void store(final ByteBuffer input) {
+			final CRC32 crc32 = new CRC32();
+			crc32.update(input.duplicate());
+			crc = crc32.getValue();
+			size = compressedSize = input.remaining();
+			compressed = input.duplicate();
+			method = ZipEntry.STORED;
+		}
+
+		public void deflate(final ByteBuffer input) {
+			final CRC32 crc32 = new CRC32();
+			crc32.update(input.duplicate());
+			crc = crc32.getValue();
+			final int length = input.remaining();
+			size = length;
+
+			final ByteBuffer source = input.duplicate();
+			byte[] chunk = null;
+			final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+			try {
+				if (source.hasArray()) {
+					deflater.setInput(source.array(), source.arrayOffset() + source.position(), length);
+					deflater.finish();
+				}
+				else if (SET_INPUT != null) {
+					setInput(deflater, source);
+					deflater.finish();
+				}
+				else
+					chunk = new byte[Math.min(length, CHUNK_SIZE)];
+				byte[] output = new byte[length / 2 + 64];
+				int outputLength = 0;
+				while (!deflater.finished()) {
+					if (chunk != null && deflater.needsInput()) {
+						// Java 8: copy the mapped input in small chunks
+						final int count = Math.min(chunk.length, source.remaining());
+						source.get(chunk, 0, count);
+						deflater.setInput(chunk, 0, count);
+						if (!source.hasRemaining())
+							deflater.finish();
+					}
+					if (outputLength == output.length) {
+						byte[] grown = new byte[2 * output.length];
+						System.arraycopy(output, 0, grown, 0, outputLength);
+						output = grown;
+					}
+					outputLength += deflater.deflate(output, outputLength, output.length - outputLength);
+				}
+				compressedSize = outputLength;
+				compressed = ByteBuffer.wrap(output, 0, outputLength);
+			} finally {
+				deflater.end();
+			}
+		}
+	}
+}
@@ -0,0 +1,205 @@
+package fiji.packaging;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+
+/**
+ * The ZIP archive of a previous release, to copy unchanged entries from.
+ * <p>
+ * Only the central directory is read up front, including its Zip64 records;
+ * the compressed data of an entry is copied verbatim by the
+ * {@link ZipPackager}, so that repackaging a patch release mostly copies
+ * bytes instead of deflating them.
+ * </p>
+ * <p>
+ * An entry is reused if its size and CRC-32 match the current file and, if
+ * the manifest of the previous release is known, so does the updater
+ * checksum.
+ * </p>
+ */
+public class PreviousArchive implements Closeable {
+	protected final static Charset UTF8 = Charset.forName("UTF-8");
+	protected final static long ZIP64_LIMIT = 0xffffffffl;
+
+	protected final FileInputStream in;
+	protected final FileChannel channel;
+	protected final Map<String, Entry> entries = new HashMap<String, Entry>();
+	protected final Manifest manifest;
+
+	/**
+	 * An entry as listed in the central directory.
+	 */
+	public static class Entry {
+		public final String name;
+		public final int flags, method;
+		public final long crc, size, compressedSize, localHeaderOffset;
+
+		public Entry(final String name, final int flags, final int method, final long crc, final long size, final long compressedSize, final long localHeaderOffset) {
+			this.name = name;
+			this.flags = flags;
+			this.method = method;
+			this.crc = crc;
+			this.size = size;
+			this.compressedSize = compressedSize;
+			this.localHeaderOffset = localHeaderOffset;
+		}
+	}
+
+	/**
+	 * Opens an archive and reads its central directory.
+	 *
+	 * @param manifest the manifest written with the archive, or null to match by size and CRC-32 only
+	 */
+	public PreviousArchive(final File file, final Manifest manifest) throws IOException {
+		this.manifest = manifest;
+		in = new FileInputStream(file);
+		channel = in.getChannel();
+		try {
+			readCentralDirectory();
+		} catch (IOException e) {
+			in.close();
+			throw new IOException("Could not read " + file + ": " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Returns an entry by its full name (including the prefix), or null.
+	 */
+	public Entry get(final String name) {
+		return entries.get(name);
+	}
+
+	/**
+	 * Returns whether an entry holds the file, judging by its size and updater
+	 * checksum; the caller still needs to compare the CRC-32.
+	 */
+	public boolean matches(final Entry entry, final PackageEntry file) {
+		if (entry.size != file.size || (entry.flags & 0x01) != 0 /* encrypted */)
+			return false;
+		if (entry.method != ZipEntry.DEFLATED && entry.method != ZipEntry.STORED)
+			return false;
+		if (manifest == null || file.checksum == null)
+			return true;
+		final Manifest.Entry previous = manifest.get(file.path);
+		return previous != null && file.checksum.equals(previous.checksum);
+	}
+
+	public FileChannel getChannel() {
+		return channel;
+	}
+
+	/**
+	 * Returns the position of an entry's compressed data, after its local header.
+	 */
+	public long getDataOffset(final Entry entry) throws IOException {
+		final ByteBuffer header = read(entry.localHeaderOffset, 30);
+		if (header.getInt(0) != 0x04034b50)
+			throw new IOException("No local header for " + entry.name);
+		return entry.localHeaderOffset + 30 + (header.getShort(26) & 0xffff) + (header.getShort(28) & 0xffff);
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+
+	protected void readCentralDirectory() throws IOException {
+		// the end of central directory record is followed by a comment of up to 64 kB
+		final long size = channel.size();
+		final int tailLength = (int) Math.min(size, 22 + 0xffff);
+		final ByteBuffer tail = read(size - tailLength, tailLength);
+		int end = -1;
+		for (int i = tailLength - 22; i >= 0; i--)
+			if (tail.getInt(i) == 0x06054b50 && i + 22 + (tail.getShort(i + 20) & 0xffff) == tailLength) {
+				end = i;
+				break;
+			}
+		if (end < 0)
+			throw new IOException("No end of central directory record");
+		long count = tail.getShort(end + 10) & 0xffff;
+		long directorySize = tail.getInt(end + 12) & ZIP64_LIMIT;
+		long directoryOffset = tail.getInt(end + 16) & ZIP64_LIMIT;
+		if (count == 0xffff || directorySize == ZIP64_LIMIT || directoryOffset == ZIP64_LIMIT) {
+			// Zip64 end of central directory locator, right before the record
+			final long endOffset = size - tailLength + end;
+			if (endOffset < 20)
+				throw new IOException("No Zip64 locator");
+			final ByteBuffer locator = read(endOffset - 20, 20);
+			if (locator.getInt(0) != 0x07064b50)
+				throw new IOException("No Zip64 locator");
+			final ByteBuffer record = read(locator.getLong(8), 56);
+			if (record.getInt(0) != 0x06064b50)
+				throw new IOException("No Zip64 end of central directory record");
+			count = record.getLong(32);
+			directorySize = record.getLong(40);
+			directoryOffset = record.getLong(48);
+		}
+		if (directorySize > Integer.MAX_VALUE)
+			throw new IOException("Central directory too large");
+
+		final ByteBuffer directory = read(directoryOffset, (int) directorySize);
+		int position = 0;
+		for (long i = 0; i < count; i++) {
+			if (directory.getInt(position) != 0x02014b50)
+				throw new IOException("Invalid central directory entry " + i);
+			final int flags = directory.getShort(position + 8) & 0xffff;
+			final int method = directory.getShort(position + 10) & 0xffff;
+			final long crc = directory.getInt(position + 16) & ZIP64_LIMIT;
+			long compressedSize = directory.getInt(position + 20) & ZIP64_LIMIT;
+			long entrySize = directory.getInt(position + 24) & ZIP64_LIMIT;
+			final int nameLength = directory.getShort(position + 28) & 0xffff;
+			final int extraLength = directory.getShort(position + 30) & 0xffff;
+			final int commentLength = directory.getShort(position + 32) & 0xffff;
+			long offset = directory.getInt(position + 42) & ZIP64_LIMIT;
+			final byte[] name = new byte[nameLength];
+			directory.position(position + 46);
+			directory.get(name);
+
+			// the Zip64 extra field holds the values that did not fit, in this order
+			for (int extra = position + 46 + nameLength; extra + 4 <= position + 46 + nameLength + extraLength; ) {
+				final int id = directory.getShort(extra) & 0xffff;
+				final int length = directory.getShort(extra + 2) & 0xffff;
+				if (id == 0x0001) {
+					int field = extra + 4;
+					if (entrySize == ZIP64_LIMIT) {
+						entrySize = directory.getLong(field);
+						field += 8;
+					}
+					if (compressedSize == ZIP64_LIMIT) {
+						compressedSize = directory.getLong(field);
+						field += 8;
+					}
+					if (offset == ZIP64_LIMIT)
+						offset = directory.getLong(field);
+				}
+				extra += 4 + length;
+			}
+
+			final String decoded = new String(name, UTF8);
+			entries.put(decoded, new Entry(decoded, flags, method, crc, entrySize, compressedSize, offset));
+			position += 46 + nameLength + extraLength + commentLength;
+		}
+	}
+
+	protected ByteBuffer read(long position, final int length) throws IOException {
+		final ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+		while (buffer.hasRemaining()) {
+			final int count = channel.read(buffer, position);
+			if (count < 0)
+				throw new EOFException("Unexpected end of file");
+			position += count;
+		}
+		buffer.flip();
+		return buffer;
+	}
+}
@@ -0,0 +1,191 @@
+package fiji.packaging;
+
+import ij.IJ;
+
+import java.io.PrintStream;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects the progress of a build and shows it at a fixed rate.
+ * <p>
+ * The threads doing the work only update counters, without locks, UI calls
+ * or I/O; a single timer thread renders the current state. Several tasks,
+ * e.g. the lines of a batch file, may report to the same sink at the same
+ * time; their counts add up.
+ * </p>
+ */
+public class ProgressSink {
+	/**
+	 * Shows the state of a {@link ProgressSink}; only ever called from one thread at a time.
+	 */
+	public interface Renderer {
+		/**
+		 * @param item the item worked on last, or null
+		 * @param finished whether all tasks have ended
+		 */
+		void render(String title, long done, long total, String item, boolean finished);
+	}
+
+	protected final Renderer renderer;
+	protected final long periodMillis;
+	protected final AtomicLong done = new AtomicLong(), total = new AtomicLong();
+	protected volatile String title = "", item;
+	protected int tasks;
+	protected ScheduledExecutorService timer;
+
+	/**
+	 * @param periodMillis the time between two renderings
+	 */
+	public ProgressSink(final Renderer renderer, final long periodMillis) {
+		this.renderer = renderer;
+		this.periodMillis = periodMillis;
+	}
+
+	/**
+	 * Makes a sink for the ImageJ status bar if ImageJ is running, otherwise
+	 * for the console, or for a log line every few seconds if the output is
+	 * redirected.
+	 */
+	public static ProgressSink createDefault() {
+		if (IJ.getInstance() != null)
+			return new ProgressSink(imageJ(), 100);
+		if (System.console() != null)
+			return new ProgressSink(console(System.out), 200);
+		return new ProgressSink(log(System.out), 5000);
+	}
+
+	/**
+	 * Starts a task, and the timer if this is the only task.
+	 *
+	 * @param total the number of items, or 0 if not known yet
+	 */
+	public synchronized void begin(final String title, final long total) {
+		this.title = title;
+		this.total.addAndGet(total);
+		if (tasks++ > 0)
+			return;
+		final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, new DaemonThreadFactory("progress"));
+		timer.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				renderer.render(ProgressSink.this.title, done.get(), ProgressSink.this.total.get(), item, false);
+			}
+		}, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+		this.timer = timer;
+	}
+
+	/**
+	 * Counts one item as done.
+	 */
+	public void advance(final String item) {
+		this.item = item;
+		done.incrementAndGet();
+	}
+
+	public void addDone(final long count) {
+		done.addAndGet(count);
+	}
+
+	public void addTotal(final long count) {
+		total.addAndGet(count);
+	}
+
+	public void setTitle(final String title) {
+		this.title = title;
+	}
+
+	public void setItem(final String item) {
+		this.item = item;
+	}
+
+	/**
+	 * Ends a task; when the last task ends, the final state is shown and the counters are reset.
+	 */
+	public synchronized void end() {
+		if (tasks == 0 || --tasks > 0)
+			return;
+		timer.shutdown();
+		try {
+			timer.awaitTermination(periodMillis + 1000, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		timer = null;
+		renderer.render(title, done.get(), total.get(), null, true);
+		done.set(0);
+		total.set(0);
+		item = null;
+	}
+
+	protected static String format(final String title, final long done, final long total) {
+		if (total <= 0)
+			return title + ": " + done;
+		return title + ": " + done + "/" + total + " (" + (100 * done / total) + "%)";
+	}
+
+	/**
+	 * Rewrites a single console line.
+	 */
+	public static Renderer console(final PrintStream out) {
+		return new Renderer() {
+			private int length;
+
+			@Override
+			public void render(final String title, final long done, final long total, final String item, final boolean finished) {
+				final StringBuilder line = new StringBuilder(format(title, done, total));
+				if (!finished && item != null)
+					line.append(' ').append(item);
+				// clear the rest of the previous line
+				final int previous = length;
+				length = line.length();
+				while (line.length() < previous)
+					line.append(' ');
+				out.print("\r" + line + (finished ? "\n" : ""));
+				out.flush();
+				if (finished)
+					length = 0;
+			}
+		};
+	}
+
+	/**
+	 * Writes a line with the counts, for logs of unattended builds; unchanged counts are skipped.
+	 */
+	public static Renderer log(final PrintStream out) {
+		return new Renderer() {
+			private long lastDone = -1, lastTotal = -1;
+
+			@Override
+			public void render(final String title, final long done, final long total, final String item, final boolean finished) {
+				if (!finished && done == lastDone && total == lastTotal)
+					return;
+				lastDone = finished ? -1 : done;
+				lastTotal = finished ? -1 : total;
+				out.println("progress title=\"" + title + "\" done=" + done + " total=" + total
+					+ (total > 0 ? " percent=" + (100 * done / total) : "") + (finished ? " finished" : ""));
+			}
+		};
+	}
+
+	/**
+	 * Shows the progress in the ImageJ status and progress bars.
+	 */
+	public static Renderer imageJ() {
+		return new Renderer() {
+			@Override
+			public void render(final String title, final long done, final long total, final String item, final boolean finished) {
+				if (finished) {
+					IJ.showProgress(1.0);
+					IJ.showStatus(format(title, done, total));
+					return;
+				}
+				IJ.showStatus(item == null ? title : title + ": " + item);
+				if (total > 0)
+					IJ.showProgress((double) done / total);
+			}
+		};
+	}
+}
@@ -0,0 +1,234 @@
+package fiji.packaging;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Prefetches the files to package while the archive is written.
+ * <p>
+ * A number of reader threads read the upcoming files, in order, into chunks
+ * taken from a bounded pool; the archive writer consumes the chunks of one
+ * file after the other and hands them back. The pool never grows beyond the
+ * memory limit.
+ * </p>
+ * <p>
+ * To avoid a deadlock, readers of files other than the one the writer waits
+ * for must leave a chunk in the pool: otherwise the readers of later files
+ * could take all chunks, and the reader of the current file could not make
+ * progress.
+ * </p>
+ */
+public class ReadAheadPipeline {
+	public final static int CHUNK_SIZE = 256 * 1024;
+	protected final static int RESERVE = 1;
+
+	protected final Slot[] slots;
+	protected final Deque<byte[]> free = new ArrayDeque<byte[]>();
+	protected final int maxChunks;
+	protected final Thread[] readers;
+	protected int allocated, nextToRead, head;
+	protected boolean closed;
+
+	/**
+	 * The chunks of one file.
+	 */
+	protected static class Slot {
+		protected final File file;
+		protected final Deque<byte[]> chunks = new ArrayDeque<byte[]>();
+		protected final Deque<Integer> lengths = new ArrayDeque<Integer>();
+		protected boolean done;
+		protected IOException failure;
+
+		protected Slot(final File file) {
+			this.file = file;
+		}
+	}
+
+	/**
+	 * Starts reading the files.
+	 *
+	 * @param files the files, in the order they will be written
+	 * @param threads the number of reader threads
+	 * @param memory the maximal number of bytes to hold
+	 */
+	public ReadAheadPipeline(final List<File> files, final int threads, final long memory) {
+		slots = new Slot[files.size()];
+		for (int i = 0; i < slots.length; i++)
+			slots[i] = new Slot(files.get(i));
+		maxChunks = (int) Math.min(Integer.MAX_VALUE, Math.max(RESERVE + 1, memory / CHUNK_SIZE));
+		final ThreadFactory factory = new DaemonThreadFactory("read-ahead");
+		readers = new Thread[Math.max(1, threads)];
+		for (int i = 0; i < readers.length; i++) {
+			readers[i] = factory.newThread(new Runnable() {
+				@Override
+				public void run() {
+					readFiles();
+				}
+			});
+			readers[i].start();
+		}
+	}
+
+	/**
+	 * Writes the prefetched contents of a file into the current entry.
+	 * <p>
+	 * Files that were skipped by the writer are discarded; if the file was not
+	 * scheduled at all, it is read directly.
+	 * </p>
+	 */
+	public void writeTo(final File file, final Packager packager) throws IOException {
+		final Slot slot = advanceTo(file);
+		if (slot == null) {
+			packager.write(new FileInputStream(file));
+			return;
+		}
+		for (;;) {
+			final byte[] chunk;
+			final int length;
+			synchronized (this) {
+				// waiting for the readers counts as reading
+				final long start = System.nanoTime();
+				while (slot.chunks.isEmpty() && !slot.done && !closed) try {
+					wait();
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException("Interrupted while reading " + file);
+				}
+				packager.getStatistics().addReadTime(System.nanoTime() - start);
+				if (closed)
+					throw new IOException("Read-ahead closed");
+				if (slot.chunks.isEmpty()) {
+					if (slot.failure != null)
+						throw slot.failure;
+					return;
+				}
+				chunk = slot.chunks.removeFirst();
+				length = slot.lengths.removeFirst();
+			}
+			try {
+				packager.write(chunk, 0, length);
+			} finally {
+				release(chunk);
+			}
+		}
+	}
+
+	/**
+	 * Stops the readers and drops all prefetched data.
+	 */
+	public void close() {
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+		}
+		for (final Thread reader : readers)
+			reader.interrupt();
+	}
+
+	protected synchronized Slot advanceTo(final File file) {
+		int index = head;
+		while (index < slots.length && !slots[index].file.equals(file))
+			index++;
+		if (index == slots.length)
+			return null;
+		for (; head < index; head++)
+			discard(slots[head]);
+		notifyAll();
+		return slots[index];
+	}
+
+	protected synchronized void discard(final Slot slot) {
+		while (!slot.chunks.isEmpty()) {
+			free.addLast(slot.chunks.removeFirst());
+			slot.lengths.removeFirst();
+		}
+	}
+
+	protected void readFiles() {
+		for (;;) {
+			final int index;
+			synchronized (this) {
+				if (closed || nextToRead >= slots.length)
+					return;
+				index = nextToRead++;
+			}
+			final Slot slot = slots[index];
+			try {
+				final InputStream in = new FileInputStream(slot.file);
+				try {
+					for (;;) {
+						final byte[] chunk = acquire(index);
+						final int length = readFully(in, chunk);
+						if (length <= 0) {
+							release(chunk);
+							break;
+						}
+						synchronized (this) {
+							if (index < head) {
+								// the writer skipped this file
+								release(chunk);
+								break;
+							}
+							slot.chunks.addLast(chunk);
+							slot.lengths.addLast(length);
+							notifyAll();
+						}
+						if (length < chunk.length)
+							break;
+					}
+				} finally {
+					in.close();
+				}
+			} catch (IOException e) {
+				slot.failure = e;
+			} catch (InterruptedException e) {
+				return;
+			} finally {
+				synchronized (this) {
+					slot.done = true;
+					notifyAll();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Takes a chunk from the pool, keeping the reserve for the writer's current file.
+	 */
+	protected synchronized byte[] acquire(final int index) throws InterruptedException {
+		for (;;) {
+			if (closed)
+				throw new InterruptedException();
+			final int available = free.size() + maxChunks - allocated;
+			if (available > (index <= head ? 0 : RESERVE))
+				break;
+			wait();
+		}
+		if (!free.isEmpty())
+			return free.removeFirst();
+		allocated++;
+		return new byte[CHUNK_SIZE];
+	}
+
+	protected synchronized void release(final byte[] chunk) {
+		free.addLast(chunk);
+		notifyAll();
+	}
+
+	private static int readFully(final InputStream in, final byte[] buffer) throws IOException {
+		int length = 0;
+		while (length < buffer.length) {
+			final int count = in.read(buffer, length, buffer.length - length);
+			if (count < 0)
+				break;
+			length += count;
+		}
+		return length;
+	}
+}
@@ -0,0 +1,20 @@
+package fiji.packaging;
+
+/**
+ * Decides whether a ZIP entry should be stored rather than deflated.
+ * <p>
+ * Implementations need to be thread-safe, as the {@link ParallelZipPackager}
+ * consults its rule from its worker threads.
+ * </p>
+ *
+ * @see StoreRules
+ */
+public interface StoreRule {
+	/**
+	 * @param name the entry name
+	 * @param head the first bytes of the entry
+	 * @param length the number of valid bytes in {@code head}
+	 * @return whether the entry is already compressed
+	 */
+	boolean shouldStore(String name, byte[] head, int length);
+}
@@ -0,0 +1,116 @@
+package fiji.packaging;
+
+import java.util.zip.Deflater;
+
+/**
+ * Ready-made {@link StoreRule}s.
+ */
+public class StoreRules {
+	/**
+	 * The number of bytes handed to the rules.
+	 */
+	public final static int HEAD_SIZE = 65536;
+
+	private final static String[] COMPRESSED_EXTENSIONS = {
+		".jar", ".zip", ".gz", ".tgz", ".bz2", ".xz", ".zst", ".7z",
+		".png", ".jpg", ".jpeg", ".gif", ".jmod"
+	};
+
+	private final static byte[][] COMPRESSED_MAGICS = {
+		{ 'P', 'K', 3, 4 }, // ZIP, .jar
+		{ 0x1f, (byte) 0x8b }, // gzip
+		{ 'B', 'Z', 'h' }, // bzip2
+		{ (byte) 0xfd, '7', 'z', 'X', 'Z', 0 }, // xz
+		{ 0x28, (byte) 0xb5, 0x2f, (byte) 0xfd }, // Zstandard
+		{ '7', 'z', (byte) 0xbc, (byte) 0xaf }, // 7-Zip
+		{ (byte) 0x89, 'P', 'N', 'G' }, // PNG
+		{ (byte) 0xff, (byte) 0xd8, (byte) 0xff }, // JPEG
+		{ 'G', 'I', 'F', '8' } // GIF
+	};
+
+	/**
+	 * Stores ZIPs, .jar files, compressed archives and images.
+	 */
+	public final static StoreRule DEFAULT = any(byExtension(COMPRESSED_EXTENSIONS), byMagic());
+
+	private StoreRules() {
+		// prevent instantiation of utility class
+	}
+
+	/**
+	 * Stores entries whose names end in one of the given extensions (ignoring case).
+	 */
+	public static StoreRule byExtension(final String... extensions) {
+		return new StoreRule() {
+			@Override
+			public boolean shouldStore(final String name, final byte[] head, final int length) {
+				for (final String extension : extensions)
+					if (name.regionMatches(true, name.length() - extension.length(), extension, 0, extension.length()))
+						return true;
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Stores entries starting with the magic bytes of a compressed format.
+	 */
+	public static StoreRule byMagic() {
+		return new StoreRule() {
+			@Override
+			public boolean shouldStore(final String name, final byte[] head, final int length) {
+				for (final byte[] magic : COMPRESSED_MAGICS) {
+					if (length < magic.length)
+						continue;
+					int i = 0;
+					while (i < magic.length && head[i] == magic[i])
+						i++;
+					if (i == magic.length)
+						return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Stores entries whose first bytes do not deflate to less than the given
+	 * fraction of their size.
+	 */
+	public static StoreRule byRatio(final double maximalRatio) {
+		return new StoreRule() {
+			@Override
+			public boolean shouldStore(final String name, final byte[] head, final int length) {
+				if (length == 0)
+					return false;
+				final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+				try {
+					deflater.setInput(head, 0, length);
+					deflater.finish();
+					final byte[] output = new byte[length];
+					int compressed = 0;
+					while (!deflater.finished() && compressed < length)
+						compressed += deflater.deflate(output, compressed, length - compressed);
+					return deflater.finished() ? compressed > maximalRatio * length : true;
+				} finally {
+					deflater.end();
+				}
+			}
+		};
+	}
+
+	/**
+	 * Stores entries matching any of the given rules.
+	 */
+	public static StoreRule any(final StoreRule... rules) {
+		return new StoreRule() {
+			@Override
+			public boolean shouldStore(final String name, final byte[] head, final int length) {
+				for (final StoreRule rule : rules)
+					if (rule.shouldStore(name, head, length))
+						return true;
+				return false;
+			}
+		};
+	}
+}
@@ -0,0 +1,245 @@
+package fiji.packaging;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * The index of a .tar.gz written by {@link IndexedGZIPOutputStream}.
+ * <p>
+ * For every file, the index records the offset of the gzip member in which
+ * the file's contents start, the offset of the contents in the member's
+ * uncompressed data, and the size. A single file can therefore be extracted
+ * by decompressing from that member on, see {@link #open(File, String)}.
+ * </p>
+ * <p>
+ * The index is stored at the end of the archive, in empty gzip members whose
+ * extra field holds the records in an {@code FI} subfield: the length of the
+ * UTF-8 encoded path (2 bytes), the path, then the three offsets (8 bytes
+ * each), all little-endian. The last member of the archive has a fixed size
+ * and an {@code FL} subfield with the offset of the first index member and
+ * the number of records.
+ * </p>
+ */
+public class TarGzIndex {
+	protected final static Charset UTF8 = Charset.forName("UTF-8");
+	protected final static int HEADER_SIZE = 16, TRAILER_SIZE = 10;
+	protected final static int MAX_DATA_SIZE = 0xffff - 4;
+	protected final static int LOCATOR_DATA_SIZE = 12;
+	protected final static int LOCATOR_SIZE = HEADER_SIZE + LOCATOR_DATA_SIZE + TRAILER_SIZE;
+
+	/**
+	 * The location of one file's contents.
+	 */
+	public static class Entry {
+		public final String path;
+		public final long offset, size;
+		/**
+		 * The offset of the gzip member in the archive.
+		 */
+		public long memberOffset;
+
+		public Entry(final String path, final long offset, final long size) {
+			this.path = path;
+			this.offset = offset;
+			this.size = size;
+		}
+	}
+
+	protected final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+
+	public void add(final Entry entry) {
+		entries.put(entry.path, entry);
+	}
+
+	public Entry get(final String path) {
+		return entries.get(path);
+	}
+
+	public Collection<Entry> entries() {
+		return entries.values();
+	}
+
+	/**
+	 * Opens the contents of a file in the archive, decompressing only from its member on.
+	 */
+	public InputStream open(final File archive, final String path) throws IOException {
+		final Entry entry = entries.get(path);
+		if (entry == null)
+			throw new FileNotFoundException(path + " is not in " + archive);
+		final FileInputStream file = new FileInputStream(archive);
+		try {
+			file.getChannel().position(entry.memberOffset);
+			final InputStream in = new GZIPInputStream(file, 65536);
+			for (long skip = entry.offset; skip > 0; ) {
+				final long count = in.skip(skip);
+				if (count <= 0)
+					throw new EOFException("Truncated archive: " + archive);
+				skip -= count;
+			}
+			return new LimitedInputStream(in, entry.size);
+		} catch (IOException e) {
+			file.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Appends the index members.
+	 *
+	 * @param offset the number of bytes written to the archive so far
+	 */
+	void write(final OutputStream out, final long offset) throws IOException {
+		final ByteBuffer member = ByteBuffer.allocate(HEADER_SIZE + MAX_DATA_SIZE + TRAILER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		member.position(HEADER_SIZE);
+		for (final Entry entry : entries.values()) {
+			final byte[] path = entry.path.getBytes(UTF8);
+			if (2 + path.length + 24 > member.remaining() - TRAILER_SIZE) {
+				writeMember(out, member, 'I');
+				member.position(HEADER_SIZE);
+			}
+			member.putShort((short) path.length);
+			member.put(path);
+			member.putLong(entry.memberOffset);
+			member.putLong(entry.offset);
+			member.putLong(entry.size);
+		}
+		if (member.position() > HEADER_SIZE)
+			writeMember(out, member, 'I');
+		member.clear();
+		member.position(HEADER_SIZE);
+		member.putLong(offset);
+		member.putInt(entries.size());
+		writeMember(out, member, 'L');
+	}
+
+	/**
+	 * Wraps the data after the header into an empty gzip member and writes it.
+	 */
+	protected static void writeMember(final OutputStream out, final ByteBuffer member, final char subfield) throws IOException {
+		final int dataSize = member.position() - HEADER_SIZE;
+		// magic, method, extra field, no mtime, no extra flags, unknown OS
+		member.put(0, (byte) 0x1f).put(1, (byte) 0x8b).put(2, (byte) 8).put(3, (byte) 4);
+		for (int i = 4; i < 9; i++)
+			member.put(i, (byte) 0);
+		member.put(9, (byte) 0xff);
+		member.putShort(10, (short) (dataSize + 4)); // extra field length
+		member.put(12, (byte) 'F').put(13, (byte) subfield);
+		member.putShort(14, (short) dataSize);
+		// an empty, final deflate block, a CRC of 0 and a size of 0
+		member.put((byte) 3).put((byte) 0).putLong(0);
+		out.write(member.array(), 0, member.position());
+	}
+
+	/**
+	 * Reads the index from the end of an archive.
+	 */
+	public static TarGzIndex read(final File archive) throws IOException {
+		final RandomAccessFile file = new RandomAccessFile(archive, "r");
+		try {
+			final long length = file.length();
+			if (length < LOCATOR_SIZE)
+				throw new IOException("Not an indexed archive: " + archive);
+			final ByteBuffer locator = readMember(file, length - LOCATOR_SIZE, 'L', archive);
+			long position = locator.getLong();
+			final int count = locator.getInt();
+
+			final TarGzIndex index = new TarGzIndex();
+			for (int read = 0; read < count; ) {
+				final ByteBuffer records = readMember(file, position, 'I', archive);
+				position += HEADER_SIZE + records.remaining() + TRAILER_SIZE;
+				while (records.hasRemaining()) {
+					final byte[] path = new byte[records.getShort() & 0xffff];
+					records.get(path);
+					final long memberOffset = records.getLong();
+					final Entry entry = new Entry(new String(path, UTF8), records.getLong(), records.getLong());
+					entry.memberOffset = memberOffset;
+					index.add(entry);
+					read++;
+				}
+			}
+			return index;
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Reads an index member, returning the data of its subfield.
+	 */
+	protected static ByteBuffer readMember(final RandomAccessFile file, final long position, final char subfield, final File archive) throws IOException {
+		final byte[] header = new byte[HEADER_SIZE];
+		file.seek(position);
+		file.readFully(header);
+		final ByteBuffer buffer = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+		final int dataSize = buffer.getShort(14) & 0xffff;
+		if (buffer.getShort(0) != (short) 0x8b1f || header[3] != 4 || header[12] != 'F' || header[13] != subfield ||
+				(buffer.getShort(10) & 0xffff) != dataSize + 4)
+			throw new IOException("Not an indexed archive: " + archive);
+		final byte[] data = new byte[dataSize];
+		file.readFully(data);
+		return ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * Reads no further than the end of a file's contents.
+	 */
+	protected static class LimitedInputStream extends FilterInputStream {
+		protected long remaining;
+
+		public LimitedInputStream(final InputStream in, final long size) {
+			super(in);
+			remaining = size;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (remaining <= 0)
+				return -1;
+			final int result = in.read();
+			if (result >= 0)
+				remaining--;
+			return result;
+		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len) throws IOException {
+			if (remaining <= 0)
+				return -1;
+			final int count = in.read(b, off, (int) Math.min(len, remaining));
+			if (count > 0)
+				remaining -= count;
+			return count;
+		}
+
+		@Override
+		public long skip(final long n) throws IOException {
+			final long count = in.skip(Math.min(n, remaining));
+			remaining -= count;
+			return count;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return (int) Math.min(in.available(), remaining);
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+	}
+}
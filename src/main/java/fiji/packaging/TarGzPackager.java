@@ -5,13 +5,53 @@ import java.io.OutputStream;
 import java.util.zip.GZIPOutputStream;
 
 public class TarGzPackager extends TarPackager {
+	protected boolean indexed;
+	protected IndexedGZIPOutputStream indexedOut;
+
 	@Override
 	public String getExtension() {
 		return ".tar.gz";
 	}
 
+	@Override
+	protected boolean isCompressing() {
+		return true;
+	}
+
+	/**
+	 * Makes the archive a series of independent gzip members with a trailing
+	 * index, so that single files can be extracted without decompressing the
+	 * whole archive; see {@link TarGzIndex}.
+	 */
+	public void setIndexed(final boolean indexed) {
+		this.indexed = indexed;
+	}
+
 	@Override
 	public void open(OutputStream out) throws IOException {
-		this.out = new GZIPOutputStream(out);
+		if (indexed) {
+			indexedOut = new IndexedGZIPOutputStream(out, threads, blockSize, sharedExecutor);
+			indexedOut.setStatistics(statistics);
+			super.open(indexedOut);
+		}
+		else if (threads > 1) {
+			final ParallelGZIPOutputStream gzip = new ParallelGZIPOutputStream(out, threads, blockSize, sharedExecutor);
+			gzip.setStatistics(statistics);
+			super.open(gzip);
+		}
+		else
+			super.open(new GZIPOutputStream(out));
+	}
+
+	@Override
+	public void putNextEntry(String name, PackageEntry entry) throws IOException {
+		if (indexedOut == null) {
+			super.putNextEntry(name, entry);
+			return;
+		}
+		// headers and padding take a few blocks at most
+		indexedOut.startEntry(entry.size + 0x600);
+		super.putNextEntry(name, entry);
+		indexedOut.addToIndex(name, entry.size);
 	}
-}
\ No newline at end of file
+}
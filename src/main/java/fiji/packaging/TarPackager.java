@@ -1,57 +1,179 @@
 package fiji.packaging;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.HashSet;
 import java.util.Set;
 
+/**
+ * Writes uncompressed tar archives.
+ * <p>
+ * The headers are encoded directly into reusable buffers. When writing to a
+ * file, the buffers are direct and are queued rather than written: the
+ * padding of the previous entry, the headers and the contents of a small
+ * file go out in a single gathering write.
+ * </p>
+ */
 public class TarPackager extends Packager {
 	protected OutputStream out;
+	protected FileChannel channel;
 	protected Set<String> directories = new HashSet<String>();
-	protected byte[] header = new byte[0x200];
-	protected int epoch = (int)(System.currentTimeMillis() / 1000);
-	protected int fileOffset, fileSize;
+	protected ByteBuffer header, extendedHeader, body, padding;
+	protected ByteBuffer[] queue = new ByteBuffer[8];
+	protected int queued;
+	protected long epoch = System.currentTimeMillis() / 1000;
+	protected long fileOffset, fileSize;
+
+	/**
+	 * The largest size the 11 octal digits of a tar header can hold.
+	 */
+	protected final static long MAX_OCTAL_SIZE = 077777777777l;
+
+	/**
+	 * Files up to this size are read into memory and written together with their header.
+	 */
+	protected final static int MAX_GATHERED_SIZE = 1 << 20;
+
+	protected final static byte[] ZEROS = new byte[0x200];
 
 	@Override
 	public String getExtension() {
 		return ".tar";
 	}
 
+	@Override
+	public void setReproducible(final long timestamp) {
+		super.setReproducible(timestamp);
+		if (timestamp >= 0)
+			// 11 octal digits last until the year 2242; clamp rather than wrap
+			epoch = Math.min(timestamp / 1000, MAX_OCTAL_SIZE);
+	}
+
 	@Override
 	public void open(OutputStream out) throws IOException {
 		this.out = out;
+		// uncompressed tars written to a file can take the zero-copy path
+		if (out instanceof FileOutputStream)
+			channel = ((FileOutputStream) out).getChannel();
+		allocateBuffers();
+	}
+
+	/**
+	 * Allocates the header buffers: direct ones for channels, heap ones for streams.
+	 */
+	protected void allocateBuffers() {
+		header = allocate(0x200);
+		extendedHeader = allocate(0x400);
+		padding = allocate(0x200);
+	}
+
+	protected ByteBuffer allocate(final int capacity) {
+		return channel != null ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
 	}
 
 	@Override
-	public void putNextEntry(String name, boolean executable, int size) throws IOException {
+	public void putNextEntry(String name, PackageEntry entry) throws IOException {
+		final long size = entry.size;
 		handleDirectory(name);
-		writeHeader(name, executable ? 0755 : 0644, size, 0);
+		writeHeader(name, entry.isExecutable() ? 0755 : 0644, size, 0);
 		fileSize = size;
 		fileOffset = 0;
 	}
 
 	@Override
 	public void write(byte[] b, int off, int len) throws IOException {
+		if (channel != null) {
+			write(ByteBuffer.wrap(b, off, len));
+			return;
+		}
 		if (fileOffset + len > fileSize)
 			throw new IOException("Unaligned file");
+		final long start = System.nanoTime();
 		out.write(b, off, len);
+		addOutputTime(System.nanoTime() - start);
+		fileOffset += len;
+	}
+
+	@Override
+	public void write(ByteBuffer buffer) throws IOException {
+		if (channel == null) {
+			super.write(buffer);
+			return;
+		}
+		final int len = buffer.remaining();
+		if (fileOffset + len > fileSize)
+			throw new IOException("Unaligned file");
+		// the caller may reuse the buffer, so write it right away, together with the headers
+		enqueue(buffer);
+		flush();
 		fileOffset += len;
 	}
 
+	@Override
+	protected void writeFile(final File file) throws IOException {
+		if (channel == null || readAhead != null) {
+			super.writeFile(file);
+			return;
+		}
+		final FileInputStream in = new FileInputStream(file);
+		try {
+			final FileChannel source = in.getChannel();
+			final long size = source.size();
+			if (fileOffset + size > fileSize)
+				throw new IOException("Unaligned file");
+			if (size <= MAX_GATHERED_SIZE) {
+				// header, contents and the previous padding in one go
+				if (body == null)
+					body = ByteBuffer.allocateDirect(MAX_GATHERED_SIZE);
+				body.clear().limit((int) size);
+				final long start = System.nanoTime();
+				while (body.hasRemaining())
+					if (source.read(body) < 0)
+						throw new IOException("Short file");
+				statistics.addReadTime(System.nanoTime() - start);
+				body.flip();
+				enqueue(body);
+				flush();
+			}
+			else {
+				flush();
+				final long start = System.nanoTime();
+				for (long position = 0; position < size; ) {
+					final long count = source.transferTo(position, size - position, channel);
+					if (count <= 0)
+						throw new IOException("Short file");
+					position += count;
+				}
+				addOutputTime(System.nanoTime() - start);
+			}
+			fileOffset += size;
+		} finally {
+			in.close();
+		}
+	}
+
 	@Override
 	public void closeEntry() throws IOException {
 		if (fileOffset != fileSize)
 			throw new IOException("Short file");
-		int remainder = (fileSize & 0x1ff);
+		int remainder = (int)(fileSize & 0x1ff);
 		if (remainder > 0) {
-			Arrays.fill(header, (byte)0);
-			out.write(header, 0, 0x200 - remainder);
+			prepare(padding);
+			padding.limit(0x200 - remainder);
+			emit(padding);
 		}
+		if (!isCompressing())
+			compressedSize = fileSize;
 	}
 
 	@Override
 	public void close() throws IOException {
+		flush();
 		out.close();
 	}
 
@@ -63,78 +185,210 @@ public class TarPackager extends Packager {
 		if (directories.contains(name))
 			return;
 		handleDirectory(name);
-		writeHeader(name, 0777, 0, 5 /* directory */);
+		writeHeader(name, timestamp >= 0 ? 0755 : 0777, 0, 5 /* directory */);
 		directories.add(name);
 	}
 
-	protected void writeHeader(String name, int mode, int size, int type) throws IOException {
-		// initialize to NULs
-		Arrays.fill(header, (byte)0);
-
-		if (name.length() > 99) {
+	protected void writeHeader(String name, int mode, long size, int type) throws IOException {
+		final boolean longName = name.length() > 99;
+		if (longName || size > MAX_OCTAL_SIZE) {
 			// write extended header
-			String headerName = "ext-header." + name.hashCode();
-			String extendedHeader = makeExtendedHeader("path", name);
-			int extSize = extendedHeader.length();
-
-			Arrays.fill(header, (byte)0);
-			System.arraycopy(headerName.getBytes("ASCII"), 0, header, 0, headerName.length());
-			digits(0666, 0x64, 8); // mode
-			digits(1000, 0x6c, 8); // uid
-			digits(1000, 0x74, 8); // gid
-			digits(extSize, 0x7c, 12); // size
-			digits(epoch, 0x88, 12); // timestamp
-			header[0x9c] = 'x'; // extended header
-			System.arraycopy("ustar".getBytes("ASCII"), 0, header, 0x101, 5); // magic
-
-			checksumHeader();
-			out.write(header);
-			Arrays.fill(header, (byte)0);
-
-			out.write(extendedHeader.getBytes("ASCII"));
+			prepare(extendedHeader);
+			if (longName)
+				putExtendedRecord("path", name, -1);
+			if (size > MAX_OCTAL_SIZE)
+				putExtendedRecord("size", null, size);
+			final int extSize = extendedHeader.position();
 			// pad
-			if ((extSize & 0x1ff) > 0)
-				out.write(header, 0, 0x200 - (extSize & 0x1ff));
+			while ((extendedHeader.position() & 0x1ff) != 0)
+				extendedHeader.put((byte)0);
+			extendedHeader.flip();
+
+			prepare(header);
+			putName("ext-header.");
+			putDecimal(header, name.hashCode());
+			encodeHeader(0666, extSize, 'x');
+			emit(header);
+			emit(extendedHeader);
+		}
+
+		prepare(header);
+		if (longName) {
+			putName("ext-name.");
+			putDecimal(header, name.hashCode());
+		}
+		else
+			putName(name);
+		encodeHeader(mode, size > MAX_OCTAL_SIZE ? 0 : size, type == 0 ? 0 : 0x30 + type);
+		emit(header);
+	}
 
-			name = "ext-name." + name.hashCode();
+	/**
+	 * Clears a buffer for reuse, writing out queued buffers first if needed.
+	 */
+	protected void prepare(final ByteBuffer buffer) throws IOException {
+		for (int i = 0; i < queued; i++)
+			if (queue[i] == buffer) {
+				flush();
+				break;
+			}
+		buffer.clear();
+		if (buffer == header) {
+			// initialize to NULs
+			buffer.put(ZEROS);
+			buffer.clear();
 		}
+	}
+
+	protected void putName(final String name) {
+		putASCII(header, name);
+	}
 
-		System.arraycopy(name.getBytes("ASCII"), 0, header, 0, name.length()); // name
+	/**
+	 * Fills in the fields after the name, and the checksum.
+	 */
+	protected void encodeHeader(final int mode, final long size, final int type) {
 		digits(mode, 0x64, 8); // mode
 		digits(1000, 0x6c, 8); // uid
 		digits(1000, 0x74, 8); // gid
 		digits(size, 0x7c, 12); // size
 		digits(epoch, 0x88, 12); // timestamp
-		if (type != 0)
-			header[0x9c] = (byte)(0x30 + type);
+		header.put(0x9c, (byte)type);
+		if (type == 'x')
+			putASCII(0x101, "ustar"); // magic
 
-		checksumHeader();
+		// checksum
+		for (int i = 0x94; i < 0x9c; i++)
+			header.put(i, (byte)0x20);
+		int checksum = 0;
+		for (int i = 0; i < 0x200; i++)
+			checksum += header.get(i) & 0xff;
+		digits(checksum, 0x94, 7);
 
-		out.write(header);
+		header.clear();
 	}
 
-	protected String makeExtendedHeader(final String key, final String value) {
-		String result = key + "=" + value + "\n";
-		int len = result.length() + 2;
-		while (len != ("" + len + " " + result).length())
-			len = ("" + len + " " + result).length();
-		return "" + len + " " + result;
+	protected void putASCII(int offset, final String string) {
+		for (int i = 0; i < string.length(); i++)
+			header.put(offset++, (byte)string.charAt(i));
 	}
 
-	protected void checksumHeader() {
-		// checksum
-		Arrays.fill(header, 0x94, 0x9c, (byte)0x20); // checksum
-		int checksum = 0;
-		for (int i = 0; i < header.length; i++)
-			checksum += header[i] & 0xff;
-		// pretend it to be decimal
-		digits(checksum, 0x94, 7);
+	protected static void putASCII(final ByteBuffer buffer, final String string) {
+		for (int i = 0; i < string.length(); i++) {
+			final char c = string.charAt(i);
+			buffer.put((byte)(c < 0x80 ? c : '?'));
+		}
+	}
+
+	/**
+	 * Puts a PAX record of the form {@code "<length> <key>=<value>\n"}.
+	 */
+	protected void putExtendedRecord(final String key, final String value, final long number) {
+		final int valueLength = value != null ? value.length() : decimalLength(number);
+		final int base = key.length() + valueLength + 3; // space, equal sign and newline
+		int length = base + decimalLength(base);
+		if (decimalLength(length) != decimalLength(base))
+			length++;
+		ensureExtendedCapacity(length + 0x200);
+		putDecimal(extendedHeader, length);
+		extendedHeader.put((byte)' ');
+		putASCII(extendedHeader, key);
+		extendedHeader.put((byte)'=');
+		if (value == null)
+			putDecimal(extendedHeader, number);
+		else
+			putASCII(extendedHeader, value);
+		extendedHeader.put((byte)'\n');
+	}
+
+	protected void ensureExtendedCapacity(final int additional) {
+		if (extendedHeader.remaining() >= additional)
+			return;
+		final ByteBuffer grown = allocate(2 * (extendedHeader.capacity() + additional));
+		extendedHeader.flip();
+		grown.put(extendedHeader);
+		extendedHeader = grown;
+	}
+
+	protected static int decimalLength(long number) {
+		int length = number < 0 ? 2 : 1;
+		for (number = Math.abs(number / 10); number > 0; number /= 10)
+			length++;
+		return length;
+	}
+
+	protected static void putDecimal(final ByteBuffer buffer, final long number) {
+		final int length = decimalLength(number);
+		final int start = buffer.position();
+		long value = number;
+		if (value < 0)
+			buffer.put(start, (byte)'-');
+		for (int i = start + length - 1; i >= start + (number < 0 ? 1 : 0); i--, value /= 10)
+			buffer.put(i, (byte)('0' + Math.abs(value % 10)));
+		buffer.position(start + length);
 	}
 
+	/**
+	 * Encodes a number as zero-padded octal digits followed by a NUL.
+	 */
 	protected void digits(long number, int offset, int len) {
-		number = Long.parseLong(Long.toOctalString(number));
-		header[offset + len - 1] = 0;
-		for (int i = len - 2; i >= 0; i--, number = number / 10)
-			header[offset + i] = (byte)(0x30 + (number % 10));
+		header.put(offset + len - 1, (byte)0);
+		for (int i = len - 2; i >= 0; i--, number >>>= 3)
+			header.put(offset + i, (byte)(0x30 + (number & 7)));
+	}
+
+	/**
+	 * Writes a buffer, or queues it for the next gathering write.
+	 */
+	protected void emit(final ByteBuffer buffer) throws IOException {
+		if (channel == null) {
+			final long start = System.nanoTime();
+			out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+			addOutputTime(System.nanoTime() - start);
+			return;
+		}
+		enqueue(buffer);
+	}
+
+	protected void enqueue(final ByteBuffer buffer) throws IOException {
+		if (queued == queue.length)
+			flush();
+		queue[queued++] = buffer;
+	}
+
+	/**
+	 * Writes all queued buffers with a single gathering write where possible.
+	 */
+	protected void flush() throws IOException {
+		if (queued == 0)
+			return;
+		long remaining = 0;
+		for (int i = 0; i < queued; i++)
+			remaining += queue[i].remaining();
+		final long start = System.nanoTime();
+		while (remaining > 0)
+			remaining -= channel.write(queue, 0, queued);
+		addOutputTime(System.nanoTime() - start);
+		for (int i = 0; i < queued; i++)
+			queue[i] = null;
+		queued = 0;
+	}
+
+	/**
+	 * Whether the output compresses the tar stream, as in the subclasses.
+	 */
+	protected boolean isCompressing() {
+		return false;
+	}
+
+	/**
+	 * Records time spent handing bytes to the output, which compresses them
+	 * if {@link #isCompressing()}.
+	 */
+	protected void addOutputTime(final long nanos) {
+		if (isCompressing())
+			statistics.addCompressTime(nanos);
+		else
+			statistics.addOutputTime(nanos);
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,86 @@
+package fiji.packaging;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+
+/**
+ * Writes Zstandard-compressed tar archives.
+ * <p>
+ * The compression is done by <a href="https://github.com/luben/zstd-jni">zstd-jni</a>,
+ * which is looked up at runtime so that the Package Maker works without it;
+ * {@link #isAvailable()} tells whether it is on the class path. With more
+ * than one thread, zstd's own worker threads compress in parallel, and
+ * long-distance matching finds the repetitions between the many similar
+ * .jar files.
+ * </p>
+ */
+public class TarZstPackager extends TarPackager {
+	protected final static String OUTPUT_STREAM_CLASS = "com.github.luben.zstd.ZstdOutputStream";
+
+	protected int level = 3;
+	protected int windowLog;
+
+	@Override
+	public String getExtension() {
+		return ".tar.zst";
+	}
+
+	@Override
+	protected boolean isCompressing() {
+		return true;
+	}
+
+	/**
+	 * Sets the compression level, from 1 (fastest) to 22 (smallest).
+	 */
+	public void setLevel(final int level) {
+		this.level = level;
+	}
+
+	/**
+	 * Enables long-distance matching.
+	 *
+	 * @param windowLog the base-2 logarithm of the window size, e.g. 27 for 128 MB, or 0 to disable
+	 */
+	public void setLongDistanceWindow(final int windowLog) {
+		this.windowLog = windowLog;
+	}
+
+	/**
+	 * Tells whether zstd-jni is available.
+	 */
+	public static boolean isAvailable() {
+		try {
+			TarZstPackager.class.getClassLoader().loadClass(OUTPUT_STREAM_CLASS);
+			return true;
+		} catch (Throwable t) {
+			return false;
+		}
+	}
+
+	@Override
+	public void open(OutputStream out) throws IOException {
+		final OutputStream zstd;
+		try {
+			final Class<?> clazz = getClass().getClassLoader().loadClass(OUTPUT_STREAM_CLASS);
+			zstd = (OutputStream) clazz.getConstructor(OutputStream.class, Integer.TYPE).newInstance(out, level);
+			if (threads > 1)
+				clazz.getMethod("setWorkers", Integer.TYPE).invoke(zstd, threads);
+			if (windowLog > 0)
+				clazz.getMethod("setLong", Integer.TYPE).invoke(zstd, windowLog);
+		} catch (ClassNotFoundException e) {
+			throw new IOException("Need zstd-jni to write " + getExtension() + " files");
+		} catch (InvocationTargetException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			throw new IOException("Could not initialize zstd: " + cause, cause);
+		} catch (ReflectiveOperationException e) {
+			throw new IOException("Unsupported zstd-jni version: " + e, e);
+		}
+		// every write is a JNI call: hand over large blocks only
+		super.open(new BufferedOutputStream(zstd, 1 << 17));
+	}
+}
@@ -1,16 +1,51 @@
 package fiji.packaging;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.HashSet;
-import java.util.Set;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.TimeZone;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
 
+/**
+ * Writes ZIP archives, deflating the entries as they are written.
+ * <p>
+ * Deflated entries are followed by a data descriptor; entries the
+ * {@link StoreRule} chooses to store are checksummed in a pre-pass so that
+ * their header is complete.
+ * </p>
+ * <p>
+ * Memory-mapped files are not copied to the heap: stored ones are written to
+ * the channel directly, deflated ones handed to the deflater, on Java 11 and
+ * later.
+ * </p>
+ * <p>
+ * With a {@link CompressedEntryCache}, files deflated by a previous build
+ * are copied from the cache instead of being deflated again; likewise,
+ * unchanged files are copied from a {@link PreviousArchive}.
+ * </p>
+ */
 public class ZipPackager extends Packager {
-	protected Set<String> executables = new HashSet<String>();
-	protected MarkExecutableOutputStream out;
-	protected ZipOutputStream zip;
+	protected final static TimeZone UTC = TimeZone.getTimeZone("UTC");
+	protected final static Method SET_INPUT = getSetInputMethod();
+
+	protected ZipWriter writer;
+	protected StoreRule storeRule;
+	protected ZipWriter.Entry storedEntry, current;
+	protected Deflater deflater;
+	protected CRC32 crc = new CRC32();
+	protected long entryBytes;
+	protected byte[] head, deflated;
+	protected CompressedEntryCache cache;
+	protected CompressedEntryCache.Writer cacheWriter;
+	protected PreviousArchive previousArchive;
 
 	@Override
 	public String getExtension() {
@@ -19,137 +54,325 @@ public class ZipPackager extends Packager {
 
 	@Override
 	public void open(OutputStream out) {
-		this.out = new MarkExecutableOutputStream(out);
-		zip = new ZipOutputStream(this.out);
+		writer = new ZipWriter(out);
+		deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		deflated = new byte[buffer.length];
 	}
 
-	@Override
-	public void putNextEntry(String name, boolean executable, int /* ignored */ size) throws IOException {
-		if (executable)
-			executables.add(name);
-		zip.putNextEntry(new ZipEntry(name));
+	/**
+	 * Sets the rule deciding which entries are stored rather than deflated.
+	 *
+	 * @param storeRule the rule, or null to deflate all entries
+	 */
+	public void setStoreRule(final StoreRule storeRule) {
+		this.storeRule = storeRule;
 	}
 
-	@Override
-	public void write(byte[] b, int off, int len) throws IOException {
-		zip.write(b, off, len);
+	/**
+	 * Sets the cache to take deflated entries from and to add them to.
+	 *
+	 * @param cache the cache, or null to deflate all entries
+	 */
+	public void setCache(final CompressedEntryCache cache) {
+		this.cache = cache;
 	}
 
-	public void closeEntry() throws IOException {
-		zip.closeEntry();
+	/**
+	 * Sets the archive of the previous release, to copy unchanged entries from.
+	 *
+	 * @param previousArchive the archive, or null to compress all entries
+	 */
+	public void setPreviousArchive(final PreviousArchive previousArchive) {
+		this.previousArchive = previousArchive;
 	}
 
-	public void close() throws IOException {
-		out.tocStartsNow();
-		zip.close();
+	@Override
+	protected void addEntry(String name, PackageEntry entry, File file) throws IOException {
+		storedEntry = storeRule == null ? null : prepareStoredEntry(name, entry, file);
+		if (storedEntry == null && addCopiedEntry(name, entry, file))
+			return;
+		super.addEntry(name, entry, file);
+	}
+
+	@Override
+	protected boolean copiesEntries() {
+		return cache != null || previousArchive != null;
 	}
 
 	/**
-	 * This class works around java.util.zip.ZipFile's inability to set the external file attributes
+	 * Copies an unchanged entry from the previous release's archive, or the
+	 * file's deflated data from the cache.
+	 * <p>
+	 * The updater's checksums of {@code .jar} files ignore the timestamps
+	 * inside, so the file's CRC-32 is verified before anything is copied:
+	 * reading a file is much cheaper than deflating it. The file is read at
+	 * most once for both, and not at all if neither has it.
+	 * </p>
+	 *
+	 * @return whether the entry was copied
 	 */
-	private class MarkExecutableOutputStream extends OutputStream {
-		protected OutputStream out;
-		protected byte[] tocEntry;
-		protected int tocEntryOffset, tocEntryLen;
-		protected final static int BASE_ENTRY_LENGTH = 46;
-
-		public MarkExecutableOutputStream(OutputStream out) {
-			this.out = out;
-			tocEntry = null;
-			tocEntryOffset = tocEntryLen = 0;
+	protected boolean addCopiedEntry(String name, PackageEntry entry, File file) throws IOException {
+		long crc = -1;
+		final PreviousArchive.Entry previous = getPreviousEntry(name, entry, file);
+		if (previous != null) {
+			crc = crc32(file);
+			if (crc == previous.crc) {
+				final ZipWriter.Entry result = new ZipWriter.Entry(name, entry.isExecutable(), getDosTime());
+				result.method = previous.method;
+				result.crc = previous.crc;
+				result.size = previous.size;
+				result.compressedSize = previous.compressedSize;
+				writeCopiedEntry(result, previousArchive.getChannel(), previousArchive.getDataOffset(previous));
+				compressedSize = previous.compressedSize;
+				return true;
+			}
+		}
+		if (cache == null || !cache.accepts(entry))
+			return false;
+		final CompressedEntryCache.Entry cached = cache.get(entry.checksum, CompressedEntryCache.DEFLATE, Deflater.DEFAULT_COMPRESSION, entry.size);
+		if (cached == null)
+			return false;
+		try {
+			if (crc < 0)
+				crc = crc32(file);
+			if (crc != cached.crc)
+				return false;
+			final ZipWriter.Entry result = new ZipWriter.Entry(name, entry.isExecutable(), getDosTime());
+			result.method = ZipEntry.DEFLATED;
+			result.crc = cached.crc;
+			result.size = cached.size;
+			result.compressedSize = cached.compressedSize;
+			writeCopiedEntry(result, cached.getChannel(), 0);
+			compressedSize = cached.compressedSize;
+			return true;
+		} finally {
+			cached.close();
 		}
+	}
+
+	/**
+	 * Looks up a file in the previous release's archive.
+	 * <p>
+	 * Only deflated entries are copied: whether a file is stored is up to
+	 * the current {@link StoreRule}, so that the archive is the same as if
+	 * nothing had been copied.
+	 * </p>
+	 *
+	 * @return the entry if its size and checksum match the file, or null; the caller still compares the CRC-32
+	 */
+	protected PreviousArchive.Entry getPreviousEntry(String name, PackageEntry entry, File file) throws IOException {
+		if (previousArchive == null)
+			return null;
+		final PreviousArchive.Entry previous = previousArchive.get(name);
+		if (previous == null || previous.method != ZipEntry.DEFLATED || !previousArchive.matches(previous, entry))
+			return null;
+		return previous;
+	}
 
-		public void tocStartsNow() {
-			tocEntry = new byte[BASE_ENTRY_LENGTH + 1024];
-			tocEntryOffset = tocEntryLen = 0;
+	protected long crc32(final File file) throws IOException {
+		final long start = System.nanoTime();
+		final CRC32 crc = new CRC32();
+		final InputStream in = new FileInputStream(file);
+		try {
+			for (int count = in.read(buffer); count >= 0; count = in.read(buffer))
+				crc.update(buffer, 0, count);
+		} finally {
+			in.close();
 		}
+		statistics.addReadTime(System.nanoTime() - start);
+		return crc.getValue();
+	}
 
-		@Override
-		public void write(int b) throws IOException {
-			if (tocEntry == null)
-				out.write(b);
-			else {
-				tocEntry[tocEntryOffset++] = (byte)b;
-				handleTOCEntry();
+	/**
+	 * Writes an entry whose sizes and CRC are known, copying its compressed data from a file.
+	 * <p>
+	 * The entry is laid out like a deflated one, with a data descriptor, so
+	 * that a reproducible archive has the same bytes whether its entries were
+	 * copied or deflated.
+	 * </p>
+	 *
+	 * @param position where the compressed data starts in the file
+	 */
+	protected void writeCopiedEntry(final ZipWriter.Entry entry, final FileChannel source, final long position) throws IOException {
+		final long start = System.nanoTime();
+		entry.flags |= 0x08; // data descriptor
+		writer.writeLocalHeader(entry);
+		writer.transferFrom(source, position, entry.compressedSize);
+		writer.writeDataDescriptor(entry);
+		statistics.addOutputTime(System.nanoTime() - start);
+	}
+
+	/**
+	 * Asks the store rule about a file, and if it should be stored, computes its
+	 * CRC-32 in a pre-pass, as the local header needs it up front.
+	 *
+	 * @return the stored entry, or null if the file should be deflated
+	 */
+	protected ZipWriter.Entry prepareStoredEntry(String name, PackageEntry entry, File file) throws IOException {
+		final InputStream in = new FileInputStream(file);
+		try {
+			final int length = readHead(in);
+			if (!storeRule.shouldStore(name, head, length))
+				return null;
+			final CRC32 crc = new CRC32();
+			crc.update(head, 0, length);
+			long size = length;
+			for (int count = in.read(buffer); count >= 0; count = in.read(buffer)) {
+				crc.update(buffer, 0, count);
+				size += count;
 			}
+			final ZipWriter.Entry result = new ZipWriter.Entry(name, entry.isExecutable(), getDosTime());
+			result.method = ZipEntry.STORED;
+			result.size = result.compressedSize = size;
+			result.crc = crc.getValue();
+			return result;
+		} finally {
+			in.close();
 		}
+	}
 
-		@Override
-		public void write(byte[] b) throws IOException {
-			if (tocEntry == null)
-				out.write(b);
-			else
-				write(b, 0, b.length);
+	/**
+	 * Reads the first bytes of a file into {@link #head}, for the {@link StoreRule}.
+	 *
+	 * @return the number of bytes read
+	 */
+	protected int readHead(final InputStream in) throws IOException {
+		if (head == null)
+			head = new byte[StoreRules.HEAD_SIZE];
+		int length = 0;
+		while (length < head.length) {
+			final int count = in.read(head, length, head.length - length);
+			if (count < 0)
+				break;
+			length += count;
 		}
+		return length;
+	}
 
-		@Override
-		public void write(byte[] b, int off, int len) throws IOException {
-			if (tocEntry == null)
-				out.write(b, off, len);
-			else {
-				System.arraycopy(b, off, tocEntry, tocEntryOffset, len);
-				tocEntryOffset += len;
-				handleTOCEntry();
-			}
+	/**
+	 * Returns the modification time of a new entry; reproducible archives use
+	 * UTC so that they do not depend on the time zone.
+	 */
+	protected int getDosTime() {
+		if (timestamp >= 0)
+			return ZipWriter.toDosTime(timestamp, UTC);
+		return ZipWriter.toDosTime(System.currentTimeMillis(), TimeZone.getDefault());
+	}
+
+	@Override
+	public void putNextEntry(String name, PackageEntry entry) throws IOException {
+		if (storedEntry != null && storedEntry.fileName.equals(name))
+			current = storedEntry;
+		else {
+			current = new ZipWriter.Entry(name, entry.isExecutable(), getDosTime());
+			current.flags |= 0x08; // data descriptor
+			crc.reset();
+			deflater.reset();
+			if (cacheWriter != null)
+				cacheWriter.abort();
+			cacheWriter = cache != null && cache.accepts(entry) ? cache.create(entry.checksum, CompressedEntryCache.DEFLATE, Deflater.DEFAULT_COMPRESSION) : null;
 		}
+		storedEntry = null;
+		entryBytes = 0;
+		writer.writeLocalHeader(current);
+	}
 
-		@Override
-		public void close() throws IOException {
-			if (tocEntry == null)
-				throw new IOException("Did not write TOC correctly!");
-			if (tocEntryOffset > 0) {
-				if (getU16(0x00) == 0x4b50 && getU16(0x02) == 0x0605)
-					// end of central directory
-					out.write(tocEntry, 0, tocEntryOffset);
-				else
-					throw new IOException("Incomplete TOC!");
-			}
-			out.close();
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		entryBytes += len;
+		if (current.method == ZipEntry.STORED) {
+			final long start = System.nanoTime();
+			writer.write(b, off, len);
+			statistics.addOutputTime(System.nanoTime() - start);
+			return;
 		}
+		crc.update(b, off, len);
+		deflater.setInput(b, off, len);
+		while (!deflater.needsInput())
+			deflate();
+	}
 
-		@Override
-		public void flush() throws IOException {
-			out.flush();
+	@Override
+	public void write(ByteBuffer buffer) throws IOException {
+		if (buffer.hasArray() || (current.method != ZipEntry.STORED && SET_INPUT == null)) {
+			super.write(buffer);
+			return;
 		}
+		entryBytes += buffer.remaining();
+		if (current.method == ZipEntry.STORED) {
+			// the CRC is known from the pre-pass
+			final long start = System.nanoTime();
+			writer.write(buffer);
+			statistics.addOutputTime(System.nanoTime() - start);
+			return;
+		}
+		crc.update(buffer.duplicate());
+		setInput(deflater, buffer);
+		while (!deflater.needsInput())
+			deflate();
+	}
 
-		protected void handleTOCEntry() throws IOException {
-			if (tocEntryLen == 0) {
-				if (tocEntryOffset >= BASE_ENTRY_LENGTH) {
-					if (getU16(0x00) != 0x4b50 || getU16(0x02) != 0x0201)
-						return;
-					tocEntryLen = BASE_ENTRY_LENGTH
-						+ getFileNameLength() + getU16(0x1e) + getU16(0x20);
-					if (tocEntryLen > tocEntry.length)
-						throw new IOException("ZIP entry too long!");
-				}
-			}
-			else if (tocEntryOffset >= tocEntryLen) {
-				String fileName = getFileName();
-				if (executables.contains(fileName)) {
-					int fileMode = 0100755;
-					tocEntry[0x28] = (byte)(fileMode & 0xff);
-					tocEntry[0x29] = (byte)((fileMode >> 8) & 0xff);
-					// say that we're Unix-compatible
-					tocEntry[0x05] = 0x03;
-				}
-				out.write(tocEntry, 0, tocEntryLen);
-				tocEntryOffset -= tocEntryLen;
-				if (tocEntryOffset > 0)
-					throw new IOException("Unaligned TOC entry!");
-				tocEntryLen = 0;
-			}
+	protected void deflate() throws IOException {
+		final long start = System.nanoTime();
+		final int count = deflater.deflate(deflated);
+		final long deflated = System.nanoTime();
+		writer.write(this.deflated, 0, count);
+		statistics.addCompressTime(deflated - start);
+		statistics.addOutputTime(System.nanoTime() - deflated);
+		if (cacheWriter != null)
+			cacheWriter.write(this.deflated, 0, count);
+		current.compressedSize += count;
+	}
+
+	/**
+	 * Returns {@code Deflater#setInput(ByteBuffer)}, or null before Java 11.
+	 */
+	protected static Method getSetInputMethod() {
+		try {
+			return Deflater.class.getMethod("setInput", ByteBuffer.class);
+		} catch (NoSuchMethodException e) {
+			return null;
 		}
+	}
 
-		protected String getFileName() {
-			return new String(tocEntry, 0x2e, getFileNameLength());
+	protected static void setInput(final Deflater deflater, final ByteBuffer input) {
+		try {
+			SET_INPUT.invoke(deflater, input);
+		} catch (IllegalAccessException e) {
+			throw new RuntimeException(e);
+		} catch (InvocationTargetException e) {
+			throw new RuntimeException(e.getCause());
 		}
+	}
 
-		protected int getFileNameLength() {
-			return getU16(0x1c);
+	public void closeEntry() throws IOException {
+		if (current.method == ZipEntry.STORED) {
+			if (entryBytes != current.size)
+				throw new IOException("Size of " + current.fileName + " changed from " + current.size + " to " + entryBytes);
 		}
+		else {
+			deflater.finish();
+			while (!deflater.finished())
+				deflate();
+			current.crc = crc.getValue();
+			current.size = entryBytes;
+			writer.writeDataDescriptor(current);
+			if (cacheWriter != null) {
+				cacheWriter.commit(current.crc, current.size);
+				cacheWriter = null;
+			}
+		}
+		compressedSize = current.compressedSize;
+		current = null;
+	}
 
-		protected int getU16(int offset) {
-			return (tocEntry[offset] & 0xff) | ((tocEntry[offset + 1] & 0xff) << 8);
+	public void close() throws IOException {
+		try {
+			writer.close();
+		} finally {
+			deflater.end();
+			if (cacheWriter != null)
+				cacheWriter.abort();
 		}
 	}
-}
\ No newline at end of file
+}
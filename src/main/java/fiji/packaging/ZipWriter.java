@@ -0,0 +1,314 @@
+package fiji.packaging;
+
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.zip.ZipEntry;
+
+/**
+ * Writes the records of a ZIP file to a channel.
+ * <p>
+ * Compression is left to the caller. The central directory is generated from
+ * the entries' bookkeeping, with the Unix file attributes of executables set
+ * right away, so that {@link java.util.zip.ZipOutputStream}'s output does not
+ * need to be patched. Headers and small writes are collected in a large
+ * direct buffer; large writes go to the channel directly.
+ * </p>
+ * <p>
+ * Zip64 records are written where sizes, offsets or the number of entries
+ * exceed the classic limits.
+ * </p>
+ */
+public class ZipWriter {
+	public final static int BUFFER_SIZE = 256 * 1024;
+
+	protected final static Charset UTF8 = Charset.forName("UTF-8");
+	protected final static long ZIP64_LIMIT = 0xffffffffl;
+	protected final static int ZIP64_ENTRIES = 0xffff;
+
+	protected final WritableByteChannel channel;
+	protected final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+	protected final List<Entry> entries = new ArrayList<Entry>();
+	protected long offset;
+
+	public ZipWriter(final OutputStream out) {
+		this(out instanceof FileOutputStream ? ((FileOutputStream) out).getChannel() : Channels.newChannel(out));
+	}
+
+	public ZipWriter(final WritableByteChannel channel) {
+		this.channel = channel;
+	}
+
+	/**
+	 * Returns the number of bytes written so far.
+	 */
+	public long getOffset() {
+		return offset;
+	}
+
+	/**
+	 * Writes the local file header and records the entry for the central directory.
+	 * <p>
+	 * If the entry has a data descriptor (flag 0x08), its CRC and sizes are
+	 * left open, to be written by {@link #writeDataDescriptor(Entry)}.
+	 * </p>
+	 */
+	public void writeLocalHeader(final Entry entry) throws IOException {
+		entry.offset = offset;
+		if (offset >= ZIP64_LIMIT)
+			entry.zip64 = true;
+		final boolean streamed = (entry.flags & 0x08) != 0;
+		final boolean sizes64 = !streamed && (entry.size >= ZIP64_LIMIT || entry.compressedSize >= ZIP64_LIMIT);
+		if (sizes64)
+			entry.zip64 = true;
+		final int extraLength = sizes64 ? 20 : 0;
+		reserve(30 + entry.name.length + extraLength);
+		buffer.putInt(0x04034b50); // local file header signature
+		buffer.putShort((short) entry.getVersionNeeded());
+		buffer.putShort((short) entry.flags);
+		buffer.putShort((short) entry.method);
+		buffer.putInt(entry.dosTime);
+		buffer.putInt(streamed ? 0 : (int) entry.crc);
+		buffer.putInt(streamed ? 0 : sizes64 ? (int) ZIP64_LIMIT : (int) entry.compressedSize);
+		buffer.putInt(streamed ? 0 : sizes64 ? (int) ZIP64_LIMIT : (int) entry.size);
+		buffer.putShort((short) entry.name.length);
+		buffer.putShort((short) extraLength);
+		buffer.put(entry.name);
+		if (sizes64) {
+			buffer.putShort((short) 0x0001); // Zip64 extended information
+			buffer.putShort((short) 16);
+			buffer.putLong(entry.size);
+			buffer.putLong(entry.compressedSize);
+		}
+		offset += 30 + entry.name.length + extraLength;
+		entries.add(entry);
+	}
+
+	/**
+	 * Writes the CRC and sizes of an entry after its data.
+	 */
+	public void writeDataDescriptor(final Entry entry) throws IOException {
+		reserve(24);
+		buffer.putInt(0x08074b50); // data descriptor signature
+		buffer.putInt((int) entry.crc);
+		// like ZipOutputStream, use 8-byte sizes only when needed, as readers decide by the sizes
+		if (entry.size >= ZIP64_LIMIT || entry.compressedSize >= ZIP64_LIMIT) {
+			entry.zip64 = true;
+			buffer.putLong(entry.compressedSize);
+			buffer.putLong(entry.size);
+			offset += 24;
+		}
+		else {
+			buffer.putInt((int) entry.compressedSize);
+			buffer.putInt((int) entry.size);
+			offset += 16;
+		}
+	}
+
+	public void write(final byte[] b, final int off, final int len) throws IOException {
+		if (len > buffer.remaining()) {
+			flush();
+			if (len >= buffer.capacity()) {
+				writeFully(ByteBuffer.wrap(b, off, len));
+				offset += len;
+				return;
+			}
+		}
+		buffer.put(b, off, len);
+		offset += len;
+	}
+
+	/**
+	 * Writes the remaining bytes of a buffer, e.g. a memory-mapped file, without copying large ones.
+	 */
+	public void write(final ByteBuffer data) throws IOException {
+		final int len = data.remaining();
+		if (len > buffer.remaining()) {
+			flush();
+			if (len >= buffer.capacity()) {
+				writeFully(data);
+				offset += len;
+				return;
+			}
+		}
+		buffer.put(data);
+		offset += len;
+	}
+
+	/**
+	 * Writes the central directory and flushes the buffer.
+	 */
+	public void finish() throws IOException {
+		final long start = offset;
+		for (final Entry entry : entries) {
+			final boolean size64 = entry.size >= ZIP64_LIMIT;
+			final boolean compressedSize64 = entry.compressedSize >= ZIP64_LIMIT;
+			final boolean offset64 = entry.offset >= ZIP64_LIMIT;
+			final int extraLength = size64 || compressedSize64 || offset64 ?
+				4 + (size64 ? 8 : 0) + (compressedSize64 ? 8 : 0) + (offset64 ? 8 : 0) : 0;
+			reserve(46 + entry.name.length + extraLength);
+			buffer.putInt(0x02014b50); // central file header signature
+			// say that we're Unix-compatible if we need to mark executables
+			buffer.putShort((short) ((entry.executable ? 0x0300 : 0) | entry.getVersionNeeded())); // version made by
+			buffer.putShort((short) entry.getVersionNeeded());
+			buffer.putShort((short) entry.flags);
+			buffer.putShort((short) entry.method);
+			buffer.putInt(entry.dosTime);
+			buffer.putInt((int) entry.crc);
+			buffer.putInt(compressedSize64 ? (int) ZIP64_LIMIT : (int) entry.compressedSize);
+			buffer.putInt(size64 ? (int) ZIP64_LIMIT : (int) entry.size);
+			buffer.putShort((short) entry.name.length);
+			buffer.putShort((short) extraLength);
+			buffer.putShort((short) 0); // file comment length
+			buffer.putShort((short) 0); // disk number start
+			buffer.putShort((short) 0); // internal file attributes
+			buffer.putInt(entry.executable ? 0100755 << 16 : 0); // external file attributes
+			buffer.putInt(offset64 ? (int) ZIP64_LIMIT : (int) entry.offset);
+			buffer.put(entry.name);
+			if (extraLength > 0) {
+				buffer.putShort((short) 0x0001); // Zip64 extended information
+				buffer.putShort((short) (extraLength - 4));
+				if (size64)
+					buffer.putLong(entry.size);
+				if (compressedSize64)
+					buffer.putLong(entry.compressedSize);
+				if (offset64)
+					buffer.putLong(entry.offset);
+			}
+			offset += 46 + entry.name.length + extraLength;
+		}
+
+		final long size = offset - start;
+		final int count = entries.size();
+		reserve(56 + 20 + 22);
+		if (count >= ZIP64_ENTRIES || size >= ZIP64_LIMIT || start >= ZIP64_LIMIT) {
+			final long record = offset;
+			buffer.putInt(0x06064b50); // Zip64 end of central directory signature
+			buffer.putLong(44); // size of the remaining record
+			buffer.putShort((short) 45); // version made by
+			buffer.putShort((short) 45); // version needed
+			buffer.putInt(0); // number of this disk
+			buffer.putInt(0); // disk where the central directory starts
+			buffer.putLong(count);
+			buffer.putLong(count);
+			buffer.putLong(size);
+			buffer.putLong(start);
+
+			buffer.putInt(0x07064b50); // Zip64 end of central directory locator signature
+			buffer.putInt(0); // disk with the Zip64 end of central directory
+			buffer.putLong(record);
+			buffer.putInt(1); // total number of disks
+			offset += 76;
+		}
+
+		buffer.putInt(0x06054b50); // end of central directory signature
+		buffer.putShort((short) 0); // number of this disk
+		buffer.putShort((short) 0); // disk where the central directory starts
+		buffer.putShort((short) Math.min(count, ZIP64_ENTRIES));
+		buffer.putShort((short) Math.min(count, ZIP64_ENTRIES));
+		buffer.putInt((int) Math.min(size, ZIP64_LIMIT));
+		buffer.putInt((int) Math.min(start, ZIP64_LIMIT));
+		buffer.putShort((short) 0); // comment length
+		offset += 22;
+		flush();
+	}
+
+	/**
+	 * Finishes the archive and closes the channel.
+	 */
+	public void close() throws IOException {
+		try {
+			finish();
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Copies bytes from a file verbatim, e.g. compressed data that was written before.
+	 * <p>
+	 * The bytes are transferred by the operating system where possible.
+	 * </p>
+	 */
+	public void transferFrom(final FileChannel source, long position, long count) throws IOException {
+		flush();
+		offset += count;
+		while (count > 0) {
+			final long transferred = source.transferTo(position, count, channel);
+			if (transferred <= 0)
+				throw new EOFException("Short file");
+			position += transferred;
+			count -= transferred;
+		}
+	}
+
+	protected void reserve(final int length) throws IOException {
+		if (buffer.remaining() < length)
+			flush();
+	}
+
+	protected void flush() throws IOException {
+		buffer.flip();
+		writeFully(buffer);
+		buffer.clear();
+	}
+
+	protected void writeFully(final ByteBuffer data) throws IOException {
+		while (data.hasRemaining())
+			channel.write(data);
+	}
+
+	/**
+	 * Converts a time to the DOS format, which has no time zone.
+	 */
+	public static int toDosTime(final long time, final TimeZone zone) {
+		final Calendar calendar = Calendar.getInstance(zone);
+		calendar.setTimeInMillis(time);
+		final int year = calendar.get(Calendar.YEAR);
+		if (year < 1980)
+			return (1 << 21) | (1 << 16);
+		return (year - 1980) << 25
+			| (calendar.get(Calendar.MONTH) + 1) << 21
+			| calendar.get(Calendar.DAY_OF_MONTH) << 16
+			| calendar.get(Calendar.HOUR_OF_DAY) << 11
+			| calendar.get(Calendar.MINUTE) << 5
+			| calendar.get(Calendar.SECOND) >> 1;
+	}
+
+	/**
+	 * The bookkeeping of a single entry, from its local header to the central directory.
+	 */
+	public static class Entry {
+		protected final String fileName;
+		protected final byte[] name;
+		protected final boolean executable;
+		protected final int dosTime;
+		protected int flags, method = ZipEntry.DEFLATED;
+		protected long crc, offset;
+		protected long size, compressedSize;
+		protected boolean zip64;
+
+		public Entry(final String name, final boolean executable, final int dosTime) {
+			fileName = name;
+			this.name = name.getBytes(UTF8);
+			this.executable = executable;
+			flags = this.name.length == name.length() ? 0 : 0x800; // language encoding flag
+			this.dosTime = dosTime;
+		}
+
+		public int getVersionNeeded() {
+			return zip64 ? 45 : method == ZipEntry.STORED ? 10 : 20;
+		}
+	}
+}
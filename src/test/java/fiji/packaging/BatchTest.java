@@ -0,0 +1,40 @@
+package fiji.packaging;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests how {@link Batch} sets up the packagers of its lines.
+ */
+public class BatchTest {
+	@Test
+	public void testThreads() {
+		final PackagerOptions options = new PackagerOptions();
+		assertEquals(ZipPackager.class, options.createPackager(new String[] { "a.zip" }).getClass());
+		assertTrue(options.parse("--threads=1"));
+		assertEquals(1, options.threads);
+		assertEquals(ZipPackager.class, options.createPackager(new String[] { "a.zip" }).getClass());
+		assertTrue(options.parse("--threads=4"));
+		assertEquals(ParallelZipPackager.class, options.createPackager(new String[] { "a.zip" }).getClass());
+	}
+
+	@Test
+	public void testShareMemory() {
+		final PackagerOptions options = new PackagerOptions();
+		assertTrue(options.parse("--threads=4"));
+		assertTrue(options.parse("--read-ahead=2"));
+		assertTrue(options.parse("--read-ahead-memory=256"));
+		final FanOutPackager packager = (FanOutPackager) options.createPackager(new String[] { "a.zip", "a.tar.gz" });
+		final ParallelZipPackager zip = (ParallelZipPackager) packager.sinks[0];
+		final long pending = zip.maxPendingBytes;
+		Batch.shareMemory(packager, 4);
+		assertEquals(pending / 4, zip.maxPendingBytes);
+		assertEquals(64l << 20, packager.readAheadMemory);
+		// but not below the minimum
+		Batch.shareMemory(packager, 1000);
+		assertEquals(Batch.MIN_MEMORY, zip.maxPendingBytes);
+		assertEquals(Batch.MIN_MEMORY, packager.readAheadMemory);
+	}
+}
@@ -0,0 +1,87 @@
+package fiji.packaging;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests {@link ChecksumCache}.
+ */
+public class ChecksumCacheTest {
+	private TestTree tree;
+	private File cacheFile;
+
+	@Before
+	public void setUp() throws IOException {
+		tree = new TestTree();
+		tree.add("jars/a.jar", TestTree.text(1, 100));
+		new File(tree.root, "plugins/Empty").mkdirs();
+		cacheFile = new File(tree.root.getParentFile(), tree.root.getName() + ".checksums");
+	}
+
+	@After
+	public void tearDown() {
+		tree.delete();
+		cacheFile.delete();
+	}
+
+	@Test
+	public void testUnchanged() throws IOException {
+		final ChecksumCache cache = scan();
+		assertTrue(cache.read());
+		assertTrue(cache.directoriesUnchanged());
+		assertEquals(1, cache.entries().size());
+	}
+
+	@Test
+	public void testFileAddedToDirectoryWithoutFiles() throws IOException {
+		scan();
+		tree.add("plugins/Empty/new.jar", TestTree.text(2, 100));
+		final ChecksumCache cache = new ChecksumCache(tree.root, cacheFile);
+		assertTrue(cache.read());
+		assertFalse(cache.directoriesUnchanged());
+	}
+
+	@Test
+	public void testDirectoryAdded() throws IOException {
+		scan();
+		tree.add("plugins/Empty/Sub/new.jar", TestTree.text(2, 100));
+		final ChecksumCache cache = new ChecksumCache(tree.root, cacheFile);
+		assertTrue(cache.read());
+		assertFalse(cache.directoriesUnchanged());
+	}
+
+	/**
+	 * Records the tree like a full scan would, with the directories' times in the past.
+	 */
+	private ChecksumCache scan() throws IOException {
+		setOld(tree.root);
+		final ChecksumCache cache = new ChecksumCache(tree.root, cacheFile);
+		cache.clear();
+		cache.recordDirectories();
+		cache.put("jars/a.jar", "checksum", Collections.<String>emptyList());
+		cache.write();
+		return cache;
+	}
+
+	/**
+	 * Moves the directories' modification times into the past, as the file
+	 * system's clock might not have advanced by the time a file is added.
+	 */
+	private static void setOld(final File dir) {
+		final File[] list = dir.listFiles();
+		if (list != null)
+			for (final File child : list)
+				if (child.isDirectory())
+					setOld(child);
+		dir.setLastModified(1000000000000l);
+	}
+}
@@ -0,0 +1,80 @@
+package fiji.packaging;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests {@link CompressedEntryCache} via the ZIP packagers.
+ */
+public class CompressedEntryCacheTest {
+	private TestTree tree;
+	private File cacheDirectory;
+
+	@Before
+	public void setUp() throws IOException {
+		tree = new TestTree();
+		for (int i = 0; i < 10; i++)
+			tree.add("jars/file" + i + ".jar", TestTree.text(i, 20000 + 5000 * i));
+		cacheDirectory = new File(tree.root, "cache");
+	}
+
+	@After
+	public void tearDown() {
+		tree.delete();
+	}
+
+	@Test
+	public void testWarmBuildIsIdentical() throws IOException {
+		assertWarmBuildIsIdentical(new ZipPackager());
+	}
+
+	@Test
+	public void testWarmParallelBuildIsIdentical() throws IOException {
+		assertWarmBuildIsIdentical(new ParallelZipPackager());
+	}
+
+	@Test
+	public void testParallelBuildUsesSerialEntries() throws IOException {
+		build(new ZipPackager());
+		final ZipPackager warmPackager = new ParallelZipPackager();
+		final byte[] warm = build(warmPackager);
+		assertEquals(0, warmPackager.getStatistics().compressNanos.get());
+		TestTree.delete(cacheDirectory);
+		assertArrayEquals(build(new ParallelZipPackager()), warm);
+	}
+
+	@Test
+	public void testChangedContentsAreNotCopied() throws IOException {
+		build(new ZipPackager());
+		// same size and updater checksum, different bytes
+		final PackageEntry stale = tree.files.get("jars/file0.jar");
+		tree.add("jars/file0.jar", TestTree.text(42, (int) stale.size));
+		tree.files.put(stale.path, stale);
+		final byte[] warm = build(new ZipPackager());
+		TestTree.delete(cacheDirectory);
+		assertArrayEquals(build(new ZipPackager()), warm);
+	}
+
+	private void assertWarmBuildIsIdentical(final ZipPackager coldPackager) throws IOException {
+		final byte[] cold = build(coldPackager);
+		assertTrue(cacheDirectory.list().length > 0);
+		final ZipPackager warmPackager = coldPackager instanceof ParallelZipPackager ? new ParallelZipPackager() : new ZipPackager();
+		final byte[] warm = build(warmPackager);
+		assertArrayEquals(cold, warm);
+		assertEquals(0, warmPackager.getStatistics().compressNanos.get());
+	}
+
+	private byte[] build(final ZipPackager packager) throws IOException {
+		final CompressedEntryCache cache = new CompressedEntryCache(cacheDirectory, 1l << 30);
+		packager.setCache(cache);
+		return tree.build(packager);
+	}
+}
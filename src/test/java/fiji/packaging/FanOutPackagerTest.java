@@ -0,0 +1,94 @@
+package fiji.packaging;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests that a {@link FanOutPackager} closes all outputs when a sink fails.
+ */
+public class FanOutPackagerTest {
+	private TestTree tree;
+
+	@Before
+	public void setUp() throws IOException {
+		tree = new TestTree();
+		for (int i = 0; i < 200; i++)
+			tree.add("jars/file" + i + ".jar", TestTree.text(i, 1000));
+	}
+
+	@After
+	public void tearDown() {
+		tree.delete();
+	}
+
+	@Test
+	public void testFailingWrite() throws IOException {
+		final TarPackager failing = new TarPackager() {
+			@Override
+			public void write(final byte[] b, final int off, final int len) throws IOException {
+				throw new IOException("disk full");
+			}
+		};
+		assertClosedAfterFailure(failing, "disk full");
+	}
+
+	@Test
+	public void testFailingClose() throws IOException {
+		final TarPackager failing = new TarPackager() {
+			@Override
+			public void close() throws IOException {
+				super.close();
+				throw new IOException("cannot close");
+			}
+		};
+		assertClosedAfterFailure(failing, "cannot close");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testOneOutputForTwoSinks() throws IOException {
+		new FanOutPackager(new TarPackager(), new ZipPackager()).open(new Output());
+	}
+
+	@Test
+	public void testCloseUnopened() throws IOException {
+		new FanOutPackager(new TarPackager(), new ZipPackager()).close();
+	}
+
+	private void assertClosedAfterFailure(final Packager failing, final String message) throws IOException {
+		final Output failingOut = new Output(), zipOut = new Output();
+		final FanOutPackager packager = new FanOutPackager(failing, new ZipPackager());
+		packager.setRootDirectory(tree.root);
+		packager.setProgress(TestTree.quiet());
+		packager.files = new LinkedHashMap<String, PackageEntry>(tree.files);
+		packager.open(failingOut, zipOut);
+		try {
+			packager.addDefaultFiles();
+			packager.close();
+			fail("The failure was not reported");
+		} catch (IOException e) {
+			assertEquals(message, e.getMessage());
+		}
+		assertTrue(failingOut.closed);
+		assertTrue(zipOut.closed);
+		// closing again neither blocks nor fails
+		packager.close();
+	}
+
+	private static class Output extends ByteArrayOutputStream {
+		private volatile boolean closed;
+
+		@Override
+		public void close() {
+			closed = true;
+		}
+	}
+}
@@ -0,0 +1,120 @@
+package fiji.packaging;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests {@link Manifest} and the delta packages written against it.
+ */
+public class ManifestTest {
+	private TestTree tree;
+	private File manifestFile;
+
+	@Before
+	public void setUp() throws IOException {
+		tree = new TestTree();
+		for (int i = 0; i < 5; i++)
+			tree.add("jars/file" + i + ".jar", TestTree.text(i, 1000 + 100 * i));
+		// not managed by the updater: checksummed by the packager
+		final File launcher = tree.add("ImageJ-linux64", TestTree.text(5, 500));
+		tree.files.put("ImageJ-linux64", PackageEntry.stat(launcher, "ImageJ-linux64", null, 0));
+		manifestFile = new File(tree.root.getParentFile(), tree.root.getName() + ".manifest");
+	}
+
+	@After
+	public void tearDown() {
+		tree.delete();
+		manifestFile.delete();
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		final Manifest manifest = getManifest();
+		manifest.write(manifestFile);
+		final Manifest read = Manifest.read(manifestFile);
+		final List<String> paths = new ArrayList<String>();
+		for (final Manifest.Entry entry : read.entries()) {
+			paths.add(entry.path);
+			final Manifest.Entry original = manifest.get(entry.path);
+			assertNotNull(entry.path, original);
+			assertEquals(original.size, entry.size);
+			assertEquals(original.checksum, entry.checksum);
+		}
+		assertEquals(new ArrayList<String>(tree.files.keySet()), paths);
+		assertEquals("sha1:", read.get("ImageJ-linux64").checksum.substring(0, 5));
+	}
+
+	@Test(expected = IOException.class)
+	public void testNotAManifest() throws IOException {
+		Manifest.read(tree.add("jars/file0.jar", TestTree.text(0, 100)));
+	}
+
+	@Test
+	public void testDelta() throws IOException {
+		getManifest().write(manifestFile);
+
+		// same size, different contents
+		tree.add("jars/file1.jar", TestTree.text(42, 1100));
+		tree.files.remove("jars/file3.jar");
+		new File(tree.root, "jars/file3.jar").delete();
+		tree.add("jars/new.jar", TestTree.text(43, 2000));
+
+		final ZipPackager packager = new ZipPackager();
+		packager.setPreviousManifest(Manifest.read(manifestFile));
+		final ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(tree.build(packager)));
+		final List<String> names = new ArrayList<String>();
+		String removals = null;
+		for (ZipEntry entry = in.getNextEntry(); entry != null; entry = in.getNextEntry()) {
+			names.add(entry.getName());
+			if (entry.getName().equals("Fiji.app/" + Packager.DELTA_REMOVALS))
+				removals = new String(readEntry(in), "UTF-8");
+		}
+		assertEquals(Arrays.asList("Fiji.app/jars/file1.jar", "Fiji.app/jars/new.jar", "Fiji.app/" + Packager.DELTA_REMOVALS), names);
+		assertEquals("jars/file3.jar\n", removals);
+	}
+
+	@Test
+	public void testUnchangedDelta() throws IOException {
+		getManifest().write(manifestFile);
+		final ZipPackager packager = new ZipPackager();
+		packager.setPreviousManifest(Manifest.read(manifestFile));
+		final ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(tree.build(packager)));
+		final ZipEntry entry = in.getNextEntry();
+		assertEquals("Fiji.app/" + Packager.DELTA_REMOVALS, entry.getName());
+		assertEquals(0, readEntry(in).length);
+		assertNull(in.getNextEntry());
+	}
+
+	/**
+	 * Reads the current entry without closing the stream.
+	 */
+	private static byte[] readEntry(final ZipInputStream in) throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final byte[] buffer = new byte[65536];
+		for (int count = in.read(buffer); count >= 0; count = in.read(buffer))
+			out.write(buffer, 0, count);
+		return out.toByteArray();
+	}
+
+	private Manifest getManifest() throws IOException {
+		final ZipPackager packager = new ZipPackager();
+		packager.setRootDirectory(tree.root);
+		packager.files = tree.files;
+		return packager.getManifest();
+	}
+}
@@ -0,0 +1,53 @@
+package fiji.packaging;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+
+/**
+ * Tests how {@link PackagerOptions} handles invalid values.
+ */
+public class PackagerOptionsTest {
+	@Test
+	public void testSourceDateEpoch() {
+		assertEquals(-1, PackagerOptions.parseSourceDateEpoch(null));
+		assertEquals(1500000000000l, PackagerOptions.parseSourceDateEpoch(" 1500000000\n"));
+		assertEquals(-1, PackagerOptions.parseSourceDateEpoch("yesterday"));
+		assertEquals(-1, PackagerOptions.parseSourceDateEpoch("-1"));
+		assertEquals(-1, PackagerOptions.parseSourceDateEpoch("" + Long.MAX_VALUE));
+	}
+
+	@Test
+	public void testInvalidNumber() {
+		final PackagerOptions options = new PackagerOptions();
+		for (final String arg : new String[] { "--threads=abc", "--cache-size=x", "--block-size=", "--reproducible=now", "--reproducible=-1", "--reproducible=" + Long.MAX_VALUE })
+			try {
+				options.parse(arg);
+				fail("Accepted " + arg);
+			} catch (IllegalArgumentException e) {
+				assertEquals("Invalid number in option: " + arg, e.getMessage());
+			}
+	}
+
+	@Test
+	public void testInvalidNumberInBatch() throws IOException {
+		final File file = File.createTempFile("batch", ".txt");
+		try {
+			final FileOutputStream out = new FileOutputStream(file);
+			try {
+				out.write("a.zip\n--threads=abc b.zip\n".getBytes("UTF-8"));
+			} finally {
+				out.close();
+			}
+			assertFalse(new Batch().read(file, new PackagerOptions()));
+		} finally {
+			file.delete();
+		}
+	}
+}
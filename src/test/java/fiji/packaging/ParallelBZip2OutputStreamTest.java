@@ -0,0 +1,121 @@
+package fiji.packaging;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.junit.Test;
+
+/**
+ * Tests {@link ParallelBZip2OutputStream} by decoding its output with Commons Compress.
+ */
+public class ParallelBZip2OutputStreamTest {
+	@Test
+	public void testEmpty() throws IOException {
+		assertRoundTrip(new byte[0], 9, 1);
+		assertRoundTrip(new byte[0], 1, 4);
+	}
+
+	@Test
+	public void testSingleByte() throws IOException {
+		final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		final ParallelBZip2OutputStream out = new ParallelBZip2OutputStream(compressed, 1, 1);
+		out.write('x');
+		out.close();
+		assertArrayEquals(new byte[] { 'x' }, decompress(compressed.toByteArray()));
+	}
+
+	@Test
+	public void testBlockSizes() throws IOException {
+		for (final int blockSize : new int[] { 1, 2, 9 }) {
+			// two and a half blocks
+			final byte[] data = mixed(blockSize, 250000 * blockSize);
+			assertRoundTrip(data, blockSize, 1);
+			assertRoundTrip(data, blockSize, 4);
+		}
+	}
+
+	@Test
+	public void testRunLengths() throws IOException {
+		// every run length the initial run-length encoding distinguishes, and longer ones
+		final ByteArrayOutputStream data = new ByteArrayOutputStream();
+		for (int length = 1; length <= 600; length++)
+			for (int i = 0; i < length; i++)
+				data.write(length);
+		assertRoundTrip(data.toByteArray(), 1, 2);
+	}
+
+	@Test
+	public void testRunsAtBlockBoundary() throws IOException {
+		final int maxBlockLength = 100000 - 19;
+		final Random random = new Random(17);
+		for (int offset = maxBlockLength - 8; offset <= maxBlockLength + 1; offset++)
+			for (final int runLength : new int[] { 3, 4, 5, 255, 256, 1000 }) {
+				final ByteArrayOutputStream data = new ByteArrayOutputStream();
+				data.write(noRuns(random, offset), 0, offset);
+				for (int i = 0; i < runLength; i++)
+					data.write(0);
+				data.write(noRuns(random, 1000), 0, 1000);
+				assertRoundTrip(data.toByteArray(), 1, 2);
+			}
+	}
+
+	@Test
+	public void testLongRun() throws IOException {
+		// a single symbol, over several blocks
+		assertRoundTrip(new byte[350000], 1, 4);
+	}
+
+	@Test
+	public void testIncompressible() throws IOException {
+		final byte[] data = new byte[300000];
+		new Random(5).nextBytes(data);
+		assertRoundTrip(data, 1, 4);
+	}
+
+	private static void assertRoundTrip(final byte[] data, final int blockSize, final int threads) throws IOException {
+		final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		final ParallelBZip2OutputStream out = new ParallelBZip2OutputStream(compressed, threads, blockSize);
+		// odd chunks, so that runs are split between calls
+		for (int off = 0; off < data.length; off += 7777)
+			out.write(data, off, Math.min(7777, data.length - off));
+		out.close();
+		assertArrayEquals("block size " + blockSize + ", " + threads + " threads", data, decompress(compressed.toByteArray()));
+	}
+
+	private static byte[] decompress(final byte[] compressed) throws IOException {
+		return TestTree.readFully(new BZip2CompressorInputStream(new ByteArrayInputStream(compressed)));
+	}
+
+	/**
+	 * Makes random bytes without any runs.
+	 */
+	private static byte[] noRuns(final Random random, final int length) {
+		final byte[] result = new byte[length];
+		for (int i = 0; i < length; i++) {
+			result[i] = (byte) random.nextInt(256);
+			if (i > 0 && result[i] == result[i - 1])
+				result[i]++;
+		}
+		return result;
+	}
+
+	/**
+	 * Makes text interspersed with runs of up to 300 bytes.
+	 */
+	private static byte[] mixed(final long seed, final int length) {
+		final Random random = new Random(seed);
+		final byte[] result = TestTree.text(seed, length);
+		for (int i = 0; i < length; i += 1000 + random.nextInt(1000)) {
+			final int run = Math.min(1 + random.nextInt(300), length - i);
+			final byte value = (byte) random.nextInt(256);
+			for (int j = 0; j < run; j++)
+				result[i + j] = value;
+		}
+		return result;
+	}
+}
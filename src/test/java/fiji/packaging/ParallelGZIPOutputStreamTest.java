@@ -0,0 +1,68 @@
+package fiji.packaging;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link ParallelGZIPOutputStream} by decoding its output with {@link GZIPInputStream}.
+ */
+public class ParallelGZIPOutputStreamTest {
+	private final static int BLOCK_SIZE = ParallelGZIPOutputStream.DICTIONARY_SIZE;
+
+	@Test
+	public void testEmpty() throws IOException {
+		assertRoundTrip(new byte[0], BLOCK_SIZE, 1);
+	}
+
+	@Test
+	public void testBlockBoundaries() throws IOException {
+		for (final int length : new int[] { 1, BLOCK_SIZE - 1, BLOCK_SIZE, BLOCK_SIZE + 1, 3 * BLOCK_SIZE, 10 * BLOCK_SIZE + 12345 }) {
+			final byte[] data = TestTree.text(length, length);
+			assertRoundTrip(data, BLOCK_SIZE, 1);
+			assertRoundTrip(data, BLOCK_SIZE, 4);
+			assertRoundTrip(data, 128 * 1024, 4);
+		}
+	}
+
+	@Test
+	public void testMatchesAcrossBlocks() throws IOException {
+		// a random pattern repeated with a period not aligned to the blocks,
+		// so that most matches reach back into the previous block
+		final byte[] pattern = new byte[20000];
+		new Random(3).nextBytes(pattern);
+		final byte[] data = new byte[20 * BLOCK_SIZE];
+		for (int i = 0; i < data.length; i++)
+			data[i] = pattern[i % pattern.length];
+		final byte[] compressed = assertRoundTrip(data, BLOCK_SIZE, 4);
+		// only possible with the preset dictionaries
+		assertTrue(compressed.length < 2 * pattern.length);
+	}
+
+	@Test
+	public void testIncompressible() throws IOException {
+		final byte[] data = new byte[5 * BLOCK_SIZE + 7];
+		new Random(4).nextBytes(data);
+		assertRoundTrip(data, BLOCK_SIZE, 4);
+	}
+
+	private static byte[] assertRoundTrip(final byte[] data, final int blockSize, final int threads) throws IOException {
+		final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		final ParallelGZIPOutputStream out = new ParallelGZIPOutputStream(compressed, threads, blockSize);
+		// odd chunks, so that writes straddle the blocks
+		for (int off = 0; off < data.length; off += 9999)
+			out.write(data, off, Math.min(9999, data.length - off));
+		out.close();
+		final byte[] result = compressed.toByteArray();
+		assertArrayEquals(data.length + " bytes, block size " + blockSize + ", " + threads + " threads",
+			data, TestTree.readFully(new GZIPInputStream(new ByteArrayInputStream(result))));
+		return result;
+	}
+}
@@ -0,0 +1,63 @@
+package fiji.packaging;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests that the {@link ParallelZipPackager} writes the same archives as the {@link ZipPackager}.
+ */
+public class ParallelZipPackagerTest {
+	private TestTree tree;
+
+	@Before
+	public void setUp() throws IOException {
+		tree = new TestTree();
+		for (int i = 0; i < 20; i++)
+			tree.add("jars/file" + i + (i % 2 == 0 ? ".jar" : ".txt"), TestTree.text(i, 1000 + 3000 * i));
+		tree.add("empty.txt", new byte[0]);
+		// incompressible data that deflates to more than its size
+		final byte[] random = new byte[50000];
+		new Random(17).nextBytes(random);
+		tree.add("images/random.bin", random);
+		tree.add("images/small.png", new byte[] { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n', 1, 2, 3 });
+	}
+
+	@After
+	public void tearDown() {
+		tree.delete();
+	}
+
+	@Test
+	public void testSameAsSerial() throws IOException {
+		assertArrayEquals(tree.build(new ZipPackager()), tree.build(new ParallelZipPackager()));
+	}
+
+	@Test
+	public void testSameAsSerialWithStoreRule() throws IOException {
+		final ZipPackager serial = new ZipPackager(), parallel = new ParallelZipPackager();
+		serial.setStoreRule(StoreRules.DEFAULT);
+		parallel.setStoreRule(StoreRules.DEFAULT);
+		assertArrayEquals(tree.build(serial), tree.build(parallel));
+	}
+
+	@Test
+	public void testSameAsSerialWithSmallQueue() throws IOException {
+		final ParallelZipPackager parallel = new ParallelZipPackager();
+		parallel.setMaxPendingBytes(10000);
+		assertArrayEquals(tree.build(new ZipPackager()), tree.build(parallel));
+	}
+
+	@Test
+	public void testPoolTimeIsRecorded() throws IOException {
+		final ParallelZipPackager parallel = new ParallelZipPackager();
+		tree.build(parallel);
+		assertTrue(parallel.getStatistics().getPoolCompressNanos() > 0);
+	}
+}
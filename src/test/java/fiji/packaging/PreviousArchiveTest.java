@@ -0,0 +1,261 @@
+package fiji.packaging;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests {@link PreviousArchive} and copying its entries via the ZIP packagers.
+ */
+public class PreviousArchiveTest {
+	private final static StoreRule STORE_ALL = new StoreRule() {
+		@Override
+		public boolean shouldStore(final String name, final byte[] head, final int length) {
+			return true;
+		}
+	};
+
+	private TestTree tree;
+	private File previousFile;
+
+	@Before
+	public void setUp() throws IOException {
+		tree = new TestTree();
+		for (int i = 0; i < 10; i++)
+			tree.add("jars/file" + i + ".jar", TestTree.text(i, 1000 + 5000 * i));
+		previousFile = new File(tree.root.getParentFile(), tree.root.getName() + "-previous.zip");
+	}
+
+	@After
+	public void tearDown() {
+		tree.delete();
+		previousFile.delete();
+	}
+
+	@Test
+	public void testUnchangedBuildIsIdentical() throws IOException {
+		writePrevious(new ZipPackager());
+		final ZipPackager packager = new ZipPackager();
+		assertArrayEquals(tree.build(new ZipPackager()), build(packager));
+		assertEquals(0, packager.getStatistics().compressNanos.get());
+	}
+
+	@Test
+	public void testChangedBuildIsIdentical() throws IOException {
+		assertChangedBuildIsIdentical(new ZipPackager(), new ZipPackager(), new ZipPackager());
+		assertChangedBuildIsIdentical(new ParallelZipPackager(), new ParallelZipPackager(), new ParallelZipPackager());
+		// the layout of the previous archive does not matter
+		assertChangedBuildIsIdentical(new ParallelZipPackager(), new ZipPackager(), new ZipPackager());
+	}
+
+	@Test
+	public void testStoredEntriesAreNotCopied() throws IOException {
+		final ZipPackager previous = new ZipPackager();
+		previous.setStoreRule(STORE_ALL);
+		writePrevious(previous);
+		assertArrayEquals(tree.build(new ZipPackager()), build(new ZipPackager()));
+	}
+
+	@Test
+	public void testStoreRuleApplies() throws IOException {
+		writePrevious(new ParallelZipPackager());
+		final ZipPackager fresh = new ParallelZipPackager(), copying = new ParallelZipPackager();
+		fresh.setStoreRule(STORE_ALL);
+		copying.setStoreRule(STORE_ALL);
+		assertArrayEquals(tree.build(fresh), build(copying));
+	}
+
+	@Test
+	public void testChecksumOnce() throws IOException {
+		writePrevious(new ZipPackager());
+		final File cacheDirectory = new File(tree.root, "cache");
+		final ZipPackager caching = new ZipPackager();
+		caching.setCache(new CompressedEntryCache(cacheDirectory, 1l << 30));
+		tree.add("jars/file9.jar", TestTree.text(99, (int) tree.files.get("jars/file9.jar").size));
+		final byte[] expected = tree.build(caching);
+
+		// file9.jar differs from the previous entry, but is cached
+		final int[] count = new int[1];
+		final ZipPackager packager = countingPackager(count);
+		packager.setCache(new CompressedEntryCache(cacheDirectory, 1l << 30));
+		assertArrayEquals(expected, build(packager));
+		assertEquals(tree.files.size(), count[0]);
+		assertEquals(0, packager.getStatistics().compressNanos.get());
+
+		// neither has the new file
+		tree.add("jars/new.jar", TestTree.text(100, 1000));
+		count[0] = 0;
+		final ZipPackager next = countingPackager(count);
+		next.setCache(new CompressedEntryCache(cacheDirectory, 1l << 30));
+		build(next);
+		assertEquals(tree.files.size() - 1, count[0]);
+	}
+
+	/**
+	 * Makes a packager counting how often it reads a file for its CRC-32.
+	 */
+	private static ZipPackager countingPackager(final int[] count) {
+		return new ZipPackager() {
+			@Override
+			protected long crc32(final File file) throws IOException {
+				count[0]++;
+				return super.crc32(file);
+			}
+		};
+	}
+
+	@Test
+	public void testZip64() throws IOException, DataFormatException {
+		final long size = (9l << 30) / 2;
+		final int count = 70000;
+		final FileOutputStream out = new FileOutputStream(previousFile);
+		final ZipWriter writer = new ZipWriter(new SparseChannel(out.getChannel()));
+		try {
+			// a stored entry of 4.5 GB zeros, written as a hole
+			final ZipWriter.Entry zeros = new ZipWriter.Entry("zeros", false, 0);
+			zeros.method = ZipEntry.STORED;
+			zeros.size = zeros.compressedSize = size;
+			final CRC32 crc = new CRC32();
+			final ByteBuffer chunk = ByteBuffer.allocate(64 << 20);
+			for (long written = 0; written < size; written += chunk.capacity())
+				crc.update(chunk.array());
+			zeros.crc = crc.getValue();
+			writer.writeLocalHeader(zeros);
+			for (long written = 0; written < size; written += chunk.capacity())
+				writer.write(chunk.duplicate());
+			// entries at offsets beyond 4 GB, and too many for the plain end record
+			for (int i = 0; i < count; i++)
+				writeDeflated(writer, "entry-" + i, ("entry " + i).getBytes("UTF-8"));
+		} finally {
+			writer.close();
+		}
+		assertTrue(previousFile.length() > size);
+
+		final PreviousArchive previous = new PreviousArchive(previousFile, null);
+		try {
+			assertEquals(count + 1, previous.entries.size());
+			final PreviousArchive.Entry zeros = previous.get("zeros");
+			assertEquals(ZipEntry.STORED, zeros.method);
+			assertEquals(size, zeros.size);
+			assertEquals(size, zeros.compressedSize);
+			assertEquals(0, zeros.localHeaderOffset);
+			assertTrue(previous.matches(zeros, new PackageEntry("zeros", size, 0, 0644, null, 0)));
+			for (final int i : new int[] { 0, 65535, count - 1 }) {
+				final PreviousArchive.Entry entry = previous.get("entry-" + i);
+				assertTrue(entry.localHeaderOffset > size);
+				final byte[] expected = ("entry " + i).getBytes("UTF-8");
+				assertEquals(expected.length, entry.size);
+				final ByteBuffer compressed = ByteBuffer.allocate((int) entry.compressedSize);
+				previous.getChannel().read(compressed, previous.getDataOffset(entry));
+				final Inflater inflater = new Inflater(true);
+				final byte[] inflated = new byte[expected.length];
+				try {
+					inflater.setInput(compressed.array());
+					assertEquals(expected.length, inflater.inflate(inflated));
+				} finally {
+					inflater.end();
+				}
+				assertArrayEquals(expected, inflated);
+			}
+		} finally {
+			previous.close();
+		}
+	}
+
+	private void assertChangedBuildIsIdentical(final ZipPackager previous, final ZipPackager fresh, final ZipPackager copying) throws IOException {
+		writePrevious(previous);
+		tree.add("jars/file1.jar", TestTree.text(11, 6000));
+		tree.add("jars/new.jar", TestTree.text(12, 7000));
+		assertArrayEquals(tree.build(fresh), build(copying));
+	}
+
+	private void writePrevious(final ZipPackager packager) throws IOException {
+		final FileOutputStream out = new FileOutputStream(previousFile);
+		try {
+			out.write(tree.build(packager));
+		} finally {
+			out.close();
+		}
+	}
+
+	private static void writeDeflated(final ZipWriter writer, final String name, final byte[] data) throws IOException {
+		final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		final byte[] compressed = new byte[data.length + 64];
+		final int length;
+		try {
+			deflater.setInput(data);
+			deflater.finish();
+			length = deflater.deflate(compressed);
+		} finally {
+			deflater.end();
+		}
+		final CRC32 crc = new CRC32();
+		crc.update(data);
+		final ZipWriter.Entry entry = new ZipWriter.Entry(name, false, 0);
+		entry.crc = crc.getValue();
+		entry.size = data.length;
+		entry.compressedSize = length;
+		writer.writeLocalHeader(entry);
+		writer.write(compressed, 0, length);
+	}
+
+	/**
+	 * Skips over large runs of zeros instead of writing them, making a sparse file.
+	 */
+	private static class SparseChannel implements WritableByteChannel {
+		private final FileChannel channel;
+
+		private SparseChannel(final FileChannel channel) {
+			this.channel = channel;
+		}
+
+		@Override
+		public int write(final ByteBuffer source) throws IOException {
+			final int length = source.remaining();
+			if (length < (1 << 20))
+				return channel.write(source);
+			for (int i = source.position(); i < source.limit(); i++)
+				if (source.get(i) != 0)
+					return channel.write(source);
+			channel.position(channel.position() + length);
+			source.position(source.limit());
+			return length;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return channel.isOpen();
+		}
+
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
+
+	private byte[] build(final ZipPackager packager) throws IOException {
+		final PreviousArchive previous = new PreviousArchive(previousFile, null);
+		try {
+			packager.setPreviousArchive(previous);
+			return tree.build(packager);
+		} finally {
+			previous.close();
+		}
+	}
+}
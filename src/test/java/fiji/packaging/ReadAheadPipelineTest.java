@@ -0,0 +1,142 @@
+package fiji.packaging;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests that the {@link ReadAheadPipeline} hands every file's contents to the packager, whatever its limits.
+ */
+public class ReadAheadPipelineTest {
+	private TestTree tree;
+	private final List<File> list = new ArrayList<File>();
+
+	@Before
+	public void setUp() throws IOException {
+		tree = new TestTree();
+		for (int i = 0; i < 30; i++)
+			list.add(tree.add("jars/file" + i + ".jar", TestTree.text(i, 1000 + 40000 * i)));
+		list.add(tree.add("empty.txt", new byte[0]));
+		// larger than the smallest memory limit
+		list.add(tree.add("jars/large.jar", TestTree.text(99, 12 * ReadAheadPipeline.CHUNK_SIZE + 17)));
+		list.add(tree.add("jars/last.jar", TestTree.text(100, ReadAheadPipeline.CHUNK_SIZE)));
+	}
+
+	@After
+	public void tearDown() {
+		tree.delete();
+	}
+
+	@Test(timeout = 60000)
+	public void testSameOutput() throws IOException {
+		final byte[] expected = tree.build(new TarPackager());
+		for (final int threads : new int[] { 2, 8, 16 })
+			for (final long memory : new long[] { 256l << 10, 1l << 20, 64l << 20 }) {
+				final TarPackager packager = new TarPackager();
+				packager.setReadAhead(threads, memory);
+				assertArrayEquals(threads + " threads, " + memory + " bytes", expected, tree.build(packager));
+			}
+	}
+
+	/**
+	 * With only two chunks and many readers, the readers of later files
+	 * must leave a chunk for the file the writer waits for.
+	 */
+	@Test(timeout = 60000)
+	public void testReserve() throws IOException {
+		final ReadAheadPipeline pipeline = new ReadAheadPipeline(list, 16, 2 * ReadAheadPipeline.CHUNK_SIZE);
+		try {
+			for (final File file : list)
+				assertContents(file, pipeline);
+		} finally {
+			pipeline.close();
+		}
+	}
+
+	@Test(timeout = 60000)
+	public void testSkippedFilesAreDiscarded() throws IOException {
+		final ReadAheadPipeline pipeline = new ReadAheadPipeline(list, 4, 2 * ReadAheadPipeline.CHUNK_SIZE);
+		try {
+			// skip all files but the last two, among them the large one
+			final int last = list.size() - 1;
+			assertContents(list.get(last - 1), pipeline);
+			for (int i = 0; i < last - 1; i++)
+				synchronized (pipeline) {
+					assertTrue(pipeline.slots[i].chunks.isEmpty());
+				}
+			// the chunks of the skipped files are available again
+			assertContents(list.get(last), pipeline);
+		} finally {
+			pipeline.close();
+		}
+	}
+
+	@Test(timeout = 60000)
+	public void testUnscheduledFilesAreReadDirectly() throws IOException {
+		final File other = tree.add("other.txt", TestTree.text(101, 3 * ReadAheadPipeline.CHUNK_SIZE));
+		final ReadAheadPipeline pipeline = new ReadAheadPipeline(list.subList(0, 5), 2, 2 * ReadAheadPipeline.CHUNK_SIZE);
+		try {
+			assertContents(other, pipeline);
+			assertContents(list.get(3), pipeline);
+			// files the writer went past are not prefetched anymore
+			assertContents(list.get(1), pipeline);
+			assertContents(list.get(4), pipeline);
+		} finally {
+			pipeline.close();
+		}
+	}
+
+	private static void assertContents(final File file, final ReadAheadPipeline pipeline) throws IOException {
+		final CollectingPackager packager = new CollectingPackager();
+		pipeline.writeTo(file, packager);
+		assertArrayEquals(file.getName(), TestTree.readFully(new FileInputStream(file)), packager.out.toByteArray());
+	}
+
+	/**
+	 * Collects the contents written into an entry.
+	 */
+	private static class CollectingPackager extends Packager {
+		private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		@Override
+		public String getExtension() {
+			return "";
+		}
+
+		@Override
+		public void open(final OutputStream out) {
+			// nothing to open
+		}
+
+		@Override
+		public void putNextEntry(final String name, final PackageEntry entry) {
+			// only one entry
+		}
+
+		@Override
+		public void write(final byte[] b, final int off, final int len) {
+			out.write(b, off, len);
+		}
+
+		@Override
+		public void closeEntry() {
+			// only one entry
+		}
+
+		@Override
+		public void close() {
+			// nothing to close
+		}
+	}
+}
@@ -0,0 +1,88 @@
+package fiji.packaging;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests {@link TarGzIndex} on archives written by the {@link TarGzPackager}.
+ */
+public class TarGzIndexTest {
+	private TestTree tree;
+	private File archive;
+	private final Map<String, byte[]> contents = new LinkedHashMap<String, byte[]>();
+
+	@Before
+	public void setUp() throws IOException {
+		tree = new TestTree();
+		final int block = Packager.MIN_BLOCK_SIZE;
+		add("empty.txt", new byte[0]);
+		add("small.txt", TestTree.text(1, 100));
+		for (int i = 0; i < 20; i++)
+			add("jars/small-" + i + ".jar", TestTree.text(i, 1000 + 997 * i));
+		add("jars/block.jar", TestTree.text(2, block));
+		add("jars/straddling.jar", TestTree.text(3, 3 * block + 123));
+		add("plugins/" + new String(new char[120]).replace('\0', 'x') + "/long-name.jar", TestTree.text(4, 5000));
+		archive = new File(tree.root.getParentFile(), tree.root.getName() + "-indexed.tar.gz");
+	}
+
+	@After
+	public void tearDown() {
+		tree.delete();
+		archive.delete();
+	}
+
+	@Test
+	public void testSingleThread() throws IOException {
+		assertIndex(1);
+	}
+
+	@Test
+	public void testMultipleThreads() throws IOException {
+		assertIndex(4);
+	}
+
+	private void assertIndex(final int threads) throws IOException {
+		final TarGzPackager packager = new TarGzPackager();
+		packager.setIndexed(true);
+		packager.setThreads(threads);
+		packager.setBlockSize(Packager.MIN_BLOCK_SIZE);
+		final byte[] bytes = tree.build(packager);
+		final FileOutputStream out = new FileOutputStream(archive);
+		try {
+			out.write(bytes);
+		} finally {
+			out.close();
+		}
+
+		// stock tools see a single stream, and the index members add nothing
+		final byte[] tar = TestTree.readFully(new GZIPInputStream(new ByteArrayInputStream(bytes)));
+		assertEquals(0, tar.length % 512);
+
+		final TarGzIndex index = TarGzIndex.read(archive);
+		assertEquals(contents.size(), index.entries().size());
+		for (final Map.Entry<String, byte[]> entry : contents.entrySet()) {
+			final String name = "Fiji.app/" + entry.getKey();
+			assertNotNull(name, index.get(name));
+			assertEquals(name, entry.getValue().length, index.get(name).size);
+			assertArrayEquals(name, entry.getValue(), TestTree.readFully(index.open(archive, name)));
+		}
+	}
+
+	private void add(final String path, final byte[] bytes) throws IOException {
+		tree.add(path, bytes);
+		contents.put(path, bytes);
+	}
+}
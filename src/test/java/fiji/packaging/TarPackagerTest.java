@@ -0,0 +1,60 @@
+package fiji.packaging;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the modification times written by the {@link TarPackager}.
+ */
+public class TarPackagerTest {
+	private TestTree tree;
+
+	@Before
+	public void setUp() throws IOException {
+		tree = new TestTree();
+		tree.add("jars/file.jar", TestTree.text(1, 1000));
+	}
+
+	@After
+	public void tearDown() {
+		tree.delete();
+	}
+
+	@Test
+	public void testAfter2038() throws IOException {
+		// 2040-01-01, past the range of a signed 32-bit time
+		assertEpoch(2208988800l, 2208988800l);
+	}
+
+	@Test
+	public void testAfterOctalRange() throws IOException {
+		assertEpoch(Long.MAX_VALUE / 1000, TarPackager.MAX_OCTAL_SIZE);
+	}
+
+	private void assertEpoch(final long seconds, final long expected) throws IOException {
+		final TarPackager packager = new TarPackager() {
+			@Override
+			public void setReproducible(final long timestamp) {
+				super.setReproducible(1000 * seconds);
+			}
+		};
+		final TarArchiveInputStream in = new TarArchiveInputStream(new ByteArrayInputStream(tree.build(packager)));
+		try {
+			int count = 0;
+			for (TarArchiveEntry entry = in.getNextTarEntry(); entry != null; entry = in.getNextTarEntry(), count++)
+				assertEquals(entry.getName(), 1000 * expected, entry.getModTime().getTime());
+			assertTrue(count > 0);
+		} finally {
+			in.close();
+		}
+	}
+}
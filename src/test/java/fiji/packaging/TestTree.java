@@ -0,0 +1,102 @@
+package fiji.packaging;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * A temporary directory with files to package, for the tests.
+ */
+class TestTree {
+	final File root;
+	final Map<String, PackageEntry> files = new LinkedHashMap<String, PackageEntry>();
+
+	TestTree() throws IOException {
+		root = Files.createTempDirectory("packager-test").toFile();
+	}
+
+	/**
+	 * Writes a file and lists it with an updater checksum derived from its contents.
+	 */
+	File add(final String path, final byte[] contents) throws IOException {
+		final File file = new File(root, path);
+		file.getParentFile().mkdirs();
+		final FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(contents);
+		} finally {
+			out.close();
+		}
+		files.put(path, PackageEntry.stat(file, path, CompressedEntryCache.sha1(new String(contents, "ISO-8859-1")), 0));
+		return file;
+	}
+
+	/**
+	 * Packages the listed files, reproducibly.
+	 */
+	byte[] build(final Packager packager) throws IOException {
+		final File output = new File(root.getParentFile(), root.getName() + packager.getExtension());
+		try {
+			packager.setRootDirectory(root);
+			packager.setReproducible(1500000000000l);
+			packager.setProgress(quiet());
+			packager.files = new LinkedHashMap<String, PackageEntry>(files);
+			packager.open(new FileOutputStream(output));
+			packager.addDefaultFiles();
+			packager.close();
+			return Files.readAllBytes(output.toPath());
+		} finally {
+			output.delete();
+		}
+	}
+
+	void delete() {
+		delete(root);
+	}
+
+	static void delete(final File file) {
+		final File[] list = file.listFiles();
+		if (list != null)
+			for (final File child : list)
+				delete(child);
+		file.delete();
+	}
+
+	static ProgressSink quiet() {
+		return new ProgressSink(new ProgressSink.Renderer() {
+			@Override
+			public void render(final String title, final long done, final long total, final String item, final boolean finished) {
+				// ignore
+			}
+		}, 1000);
+	}
+
+	/**
+	 * Makes compressible text of the given size.
+	 */
+	static byte[] text(final long seed, final int size) {
+		final Random random = new Random(seed);
+		final byte[] result = new byte[size];
+		for (int i = 0; i < size; i++)
+			result[i] = (byte) (random.nextInt(8) == 0 ? '\n' : 'a' + random.nextInt(6));
+		return result;
+	}
+
+	static byte[] readFully(final InputStream in) throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final byte[] buffer = new byte[65536];
+		try {
+			for (int count = in.read(buffer); count >= 0; count = in.read(buffer))
+				out.write(buffer, 0, count);
+		} finally {
+			in.close();
+		}
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,63 @@
+package fiji.packaging;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests that the {@link ZipPackager} writes memory-mapped files without copying them.
+ */
+public class ZipPackagerTest {
+	private TestTree tree;
+
+	@Before
+	public void setUp() throws IOException {
+		tree = new TestTree();
+		for (int i = 0; i < 10; i++)
+			tree.add("jars/file" + i + (i % 2 == 0 ? ".jar" : ".txt"), TestTree.text(i, 1000 + 30000 * i));
+		final byte[] random = new byte[300000];
+		new Random(17).nextBytes(random);
+		tree.add("images/random.bin", random);
+	}
+
+	@After
+	public void tearDown() {
+		tree.delete();
+	}
+
+	@Test
+	public void testMappedFiles() throws IOException {
+		assertMappedFilesAreNotCopied(null);
+	}
+
+	@Test
+	public void testMappedFilesWithStoreRule() throws IOException {
+		assertMappedFilesAreNotCopied(StoreRules.DEFAULT);
+	}
+
+	private void assertMappedFilesAreNotCopied(final StoreRule rule) throws IOException {
+		final ZipPackager reading = new ZipPackager();
+		reading.setStoreRule(rule);
+		final byte[] expected = tree.build(reading);
+
+		final int[] copies = new int[1];
+		final ZipPackager mapping = new ZipPackager() {
+			@Override
+			public void write(final byte[] b, final int off, final int len) throws IOException {
+				copies[0]++;
+				super.write(b, off, len);
+			}
+		};
+		mapping.setStoreRule(rule);
+		mapping.setMapThreshold(0);
+		assertArrayEquals(expected, tree.build(mapping));
+		if (ZipPackager.SET_INPUT != null)
+			assertEquals(0, copies[0]);
+	}
+}
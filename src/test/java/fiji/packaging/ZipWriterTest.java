@@ -0,0 +1,220 @@
+package fiji.packaging;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.TimeZone;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests {@link ZipWriter} by reading its archives with {@link ZipFile} and {@link ZipInputStream}.
+ */
+public class ZipWriterTest {
+	private final static int DOS_TIME = ZipWriter.toDosTime(1500000000000l, TimeZone.getTimeZone("UTC"));
+
+	private File file;
+
+	@Before
+	public void setUp() throws IOException {
+		file = File.createTempFile("zip-writer-test", ".zip");
+	}
+
+	@After
+	public void tearDown() {
+		file.delete();
+	}
+
+	@Test
+	public void testDataDescriptors() throws IOException {
+		final byte[] text = TestTree.text(1, 100000);
+		final ZipWriter writer = new ZipWriter(new FileOutputStream(file));
+		writeDeflated(writer, "streamed.txt", text, true);
+		writeDeflated(writer, "known.txt", text, false);
+		final ZipWriter.Entry stored = new ZipWriter.Entry("stored.txt", true, DOS_TIME);
+		stored.method = ZipEntry.STORED;
+		stored.size = stored.compressedSize = text.length;
+		stored.crc = crc(text);
+		writer.writeLocalHeader(stored);
+		writer.write(text, 0, text.length);
+		writer.close();
+
+		final ZipFile zip = new ZipFile(file);
+		try {
+			for (final String name : new String[] { "streamed.txt", "known.txt", "stored.txt" }) {
+				final ZipEntry entry = zip.getEntry(name);
+				assertNotNull(name, entry);
+				assertEquals(name, text.length, entry.getSize());
+				assertArrayEquals(name, text, TestTree.readFully(zip.getInputStream(entry)));
+			}
+		} finally {
+			zip.close();
+		}
+		// the streaming reader relies on the local headers and data descriptors
+		final ZipInputStream in = new ZipInputStream(new FileInputStream(file));
+		try {
+			for (int i = 0; i < 3; i++) {
+				assertNotNull(in.getNextEntry());
+				assertArrayEquals(text, TestTree.readFully(new NonClosing(in)));
+			}
+			assertNull(in.getNextEntry());
+		} finally {
+			in.close();
+		}
+	}
+
+	@Test
+	public void testManyEntries() throws IOException {
+		final int count = 70000;
+		final ZipWriter writer = new ZipWriter(new FileOutputStream(file));
+		for (int i = 0; i < count; i++)
+			writeDeflated(writer, "entry-" + i, ("entry " + i).getBytes("UTF-8"), i % 2 == 0);
+		writer.close();
+
+		final ZipFile zip = new ZipFile(file);
+		try {
+			assertEquals(count, zip.size());
+			for (final int i : new int[] { 0, 65534, 65535, 65536, count - 1 })
+				assertArrayEquals(("entry " + i).getBytes("UTF-8"), TestTree.readFully(zip.getInputStream(zip.getEntry("entry-" + i))));
+		} finally {
+			zip.close();
+		}
+	}
+
+	@Test
+	public void testLargeEntries() throws IOException {
+		// deflate 4.5 GB of zeros once, and write the result twice
+		final long size = (9l << 30) / 2;
+		final byte[] zeros = new byte[1 << 20];
+		final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+		final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		final byte[] buffer = new byte[65536];
+		final CRC32 crc = new CRC32();
+		try {
+			for (long written = 0; written < size; written += zeros.length) {
+				deflater.setInput(zeros);
+				crc.update(zeros);
+				while (!deflater.needsInput())
+					compressed.write(buffer, 0, deflater.deflate(buffer));
+			}
+			deflater.finish();
+			while (!deflater.finished())
+				compressed.write(buffer, 0, deflater.deflate(buffer));
+		} finally {
+			deflater.end();
+		}
+		final byte[] data = compressed.toByteArray();
+
+		final ZipWriter writer = new ZipWriter(new FileOutputStream(file));
+		for (final boolean streamed : new boolean[] { true, false }) {
+			final ZipWriter.Entry entry = new ZipWriter.Entry(streamed ? "streamed" : "known", false, DOS_TIME);
+			entry.crc = crc.getValue();
+			entry.size = size;
+			entry.compressedSize = data.length;
+			if (streamed)
+				entry.flags |= 0x08;
+			writer.writeLocalHeader(entry);
+			writer.write(data, 0, data.length);
+			if (streamed)
+				writer.writeDataDescriptor(entry);
+		}
+		writeDeflated(writer, "after", "after".getBytes("UTF-8"), true);
+		writer.close();
+
+		final ZipFile zip = new ZipFile(file);
+		try {
+			for (final String name : new String[] { "streamed", "known" }) {
+				final ZipEntry entry = zip.getEntry(name);
+				assertEquals(name, size, entry.getSize());
+				assertEquals(name, data.length, entry.getCompressedSize());
+				assertEquals(name, size, count(zip.getInputStream(entry)));
+			}
+			assertArrayEquals("after".getBytes("UTF-8"), TestTree.readFully(zip.getInputStream(zip.getEntry("after"))));
+		} finally {
+			zip.close();
+		}
+		// verifies the CRCs and the sizes in the local headers and data descriptors
+		final ZipInputStream in = new ZipInputStream(new FileInputStream(file));
+		try {
+			assertEquals("streamed", in.getNextEntry().getName());
+			assertEquals(size, count(new NonClosing(in)));
+			assertEquals("known", in.getNextEntry().getName());
+			assertEquals(size, count(new NonClosing(in)));
+			assertEquals("after", in.getNextEntry().getName());
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void writeDeflated(final ZipWriter writer, final String name, final byte[] data, final boolean streamed) throws IOException {
+		final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		final byte[] buffer = new byte[65536];
+		try {
+			deflater.setInput(data);
+			deflater.finish();
+			while (!deflater.finished())
+				compressed.write(buffer, 0, deflater.deflate(buffer));
+		} finally {
+			deflater.end();
+		}
+		final ZipWriter.Entry entry = new ZipWriter.Entry(name, false, DOS_TIME);
+		entry.crc = crc(data);
+		entry.size = data.length;
+		entry.compressedSize = compressed.size();
+		if (streamed)
+			entry.flags |= 0x08;
+		writer.writeLocalHeader(entry);
+		writer.write(compressed.toByteArray(), 0, compressed.size());
+		if (streamed)
+			writer.writeDataDescriptor(entry);
+	}
+
+	private static long crc(final byte[] data) {
+		final CRC32 crc = new CRC32();
+		crc.update(data);
+		return crc.getValue();
+	}
+
+	private static long count(final InputStream in) throws IOException {
+		final byte[] buffer = new byte[1 << 20];
+		long total = 0;
+		try {
+			for (int count = in.read(buffer); count >= 0; count = in.read(buffer))
+				total += count;
+		} finally {
+			in.close();
+		}
+		return total;
+	}
+
+	/**
+	 * Leaves the {@link ZipInputStream} open at the end of an entry.
+	 */
+	private static class NonClosing extends FilterInputStream {
+		private NonClosing(final InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public void close() {
+			// the next entry follows
+		}
+	}
+}